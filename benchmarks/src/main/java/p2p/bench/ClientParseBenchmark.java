@@ -0,0 +1,107 @@
+package p2p.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The client reading a QUERYFILE reply into a FileChunkMap, for one full page of chunks with their hashes,
+ * spread in blocks of 16 chunks over hostCount holders. The reply is built by a real directory server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientParseBenchmark {
+
+    static final String FILENAME = "file.bin";
+    static final int CHUNK_SIZE = 512 * 1024;
+    static final int CHUNK_COUNT = (int) Internals.constant("QUERY_FILE_PAGE_CHUNKS");
+    static final int CHUNK_HASH_SIZE = (int) Internals.constant("CHUNK_HASH_SIZE");
+    static final int BLOCK_CHUNKS = 16;
+
+    @Param({"1", "10", "100"})
+    public int hostCount;
+
+    private byte[] reply;
+
+    private MethodHandle readFrame;
+    private MethodHandle newFileChunkMap;
+    private MethodHandle addPage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Path stateDirectory = Files.createTempDirectory("client-parse-bench");
+        Object peerSelector = Internals.method("PeerSelector", "forName", String.class).invoke("power-of-two");
+        Object server = Internals.constructor("DirectoryServer", String.class, "PeerSelector")
+                .invoke(stateDirectory + "/", peerSelector);
+        MethodHandle handleInformMsg = Internals.method("DirectoryServer", "handleInformMsg",
+                String.class, int.class, "WireCodec$Frame", String.class, int.class);
+
+        for (int host = 0; host < hostCount; host++) {
+            // The host holds every hostCount-th block of chunks. The host holding the last chunk sends the hashes,
+            // since the directory only takes hashes that come with the last chunk they cover.
+            List<Object> ranges = new ArrayList<>();
+            for (int first = 1 + host * BLOCK_CHUNKS; first <= CHUNK_COUNT; first += hostCount * BLOCK_CHUNKS) {
+                ranges.add(first);
+                ranges.add(Math.min(CHUNK_COUNT, first + BLOCK_CHUNKS - 1));
+            }
+            List<Object> fields = new ArrayList<>(List.of(FILENAME, CHUNK_SIZE, ranges.size() / 2));
+            fields.addAll(ranges);
+            if (!ranges.isEmpty() && (int) ranges.get(ranges.size() - 1) == CHUNK_COUNT) {
+                fields.add(CHUNK_COUNT);
+                fields.add(new byte[CHUNK_COUNT * CHUNK_HASH_SIZE]);
+            } else {
+                fields.add(0);
+            }
+
+            Object message = Wire.decode(Wire.frame(Wire.TYPE_INFORM, fields.toArray()));
+            String filename = (String) Wire.GET_STRING.invoke(message);
+            int chunkSize = (int) Wire.GET_INT.invoke(message);
+            handleInformMsg.invoke(server, filename, chunkSize, message, "10.0.0." + host,
+                    DirectoryServerBenchmark.P2P_SERVER_PORT);
+        }
+
+        reply = Wire.toBytes((ByteBuffer) Internals.method("DirectoryServer", "getQueryFileReplyMessage",
+                String.class, int.class).invoke(server, FILENAME, 1));
+
+        readFrame = Internals.method("WireCodec", "readFrame", DataInputStream.class);
+        newFileChunkMap = Internals.constructor("FileChunkMap", int.class, int.class);
+        addPage = Internals.method("FileChunkMap", "addPage", int.class, "WireCodec$Frame");
+
+        // The journal thread was never started, so nothing was written there
+        Files.delete(stateDirectory);
+    }
+
+    @Benchmark
+    public Object readQueryFileReply() throws Throwable {
+        Object frame = readFrame.invoke(new DataInputStream(new ByteArrayInputStream(reply)));
+        int chunkSize = (int) Wire.GET_INT.invoke(frame);
+        int chunkCount = (int) Wire.GET_INT.invoke(frame);
+        Wire.GET_INT.invoke(frame); // next page
+        Object chunkMap = newFileChunkMap.invoke(chunkSize, chunkCount);
+        addPage.invoke(chunkMap, 1, frame);
+        return chunkMap;
+    }
+}
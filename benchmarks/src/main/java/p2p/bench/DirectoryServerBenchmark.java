@@ -0,0 +1,177 @@
+package p2p.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The directory server's request handlers, called directly on an index of hostCount hosts that each hold
+ * filesPerHost files. Every file is held by about hostCount / 10 hosts.
+ * The journal thread runs as it does in the server, so informs and exits pay for queueing their records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryServerBenchmark {
+
+    static final int CHUNK_SIZE = 512 * 1024;
+    static final int CHUNK_COUNT = 1024;
+    static final int P2P_SERVER_PORT = (int) Internals.constant("P2P_SERVER_PORT");
+
+    @Param({"10", "1000"})
+    public int hostCount;
+
+    @Param({"10", "100"})
+    public int filesPerHost;
+
+    private Path stateDirectory;
+    private Thread journalThread;
+    private Object server;
+
+    private MethodHandle handleInformMsg;
+    private MethodHandle handleExitMsg;
+    private MethodHandle getQueryReplyMessage;
+    private MethodHandle getQueryFileReplyMessage;
+    private MethodHandle getListReplyMessage;
+    private MethodHandle handleClientMsg;
+
+    private String[] hostIps;
+    private Object[] hostConnections;
+    private String[] filenames;
+    private byte[][] informFrames;
+    private byte[][] queryFrames;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        stateDirectory = Files.createTempDirectory("directory-bench");
+        Object peerSelector = Internals.method("PeerSelector", "forName", String.class).invoke("power-of-two");
+        server = Internals.constructor("DirectoryServer", String.class, "PeerSelector")
+                .invoke(stateDirectory + "/", peerSelector);
+
+        Object journal = Internals.field(server, "journal");
+        Internals.method("DirectoryJournal", "recover").invoke(journal);
+        journalThread = new Thread((Runnable) journal, "directory-journal");
+        journalThread.setDaemon(true);
+        journalThread.start();
+
+        handleInformMsg = Internals.method("DirectoryServer", "handleInformMsg",
+                String.class, int.class, "WireCodec$Frame", String.class, int.class);
+        handleExitMsg = Internals.method("DirectoryServer", "handleExitMsg", String.class, int.class);
+        getQueryReplyMessage = Internals.method("DirectoryServer", "getQueryReplyMessage", String.class, int.class);
+        getQueryFileReplyMessage = Internals.method("DirectoryServer", "getQueryFileReplyMessage",
+                String.class, int.class);
+        getListReplyMessage = Internals.method("DirectoryServer", "getListReplyMessage");
+        handleClientMsg = Internals.method("DirectoryServer", "handleClientMsg",
+                "DirectoryServer$Connection", "WireCodec$Frame");
+        MethodHandle newConnection = Internals.constructor("DirectoryServer$Connection", "DirectoryServer", String.class);
+
+        int fileCount = Math.max(filesPerHost, hostCount * filesPerHost / 10);
+        filenames = new String[fileCount];
+        informFrames = new byte[fileCount][];
+        queryFrames = new byte[fileCount][];
+        for (int f = 0; f < fileCount; f++) {
+            filenames[f] = "file-" + f + ".bin";
+            informFrames[f] = Wire.frame(Wire.TYPE_INFORM, filenames[f], CHUNK_SIZE, 1, 1, CHUNK_COUNT, 0);
+            queryFrames[f] = Wire.frame(Wire.TYPE_QUERY, filenames[f], 1);
+        }
+
+        hostIps = new String[hostCount];
+        hostConnections = new Object[hostCount];
+        for (int h = 0; h < hostCount; h++) {
+            hostIps[h] = "10." + ((h >> 16) & 0xFF) + "." + ((h >> 8) & 0xFF) + "." + (h & 0xFF);
+            hostConnections[h] = newConnection.invoke(server, hostIps[h]);
+            informFilesOfHost(h);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        journalThread.interrupt();
+        journalThread.join();
+        try (Stream<Path> paths = Files.walk(stateDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void informFilesOfHost(int host) throws Throwable {
+        for (int i = 0; i < filesPerHost; i++) {
+            inform(host, (host * filesPerHost + i) % filenames.length);
+        }
+    }
+
+    private void inform(int host, int file) throws Throwable {
+        Object message = Wire.decode(informFrames[file]);
+        String filename = (String) Wire.GET_STRING.invoke(message);
+        int chunkSize = (int) Wire.GET_INT.invoke(message);
+        handleInformMsg.invoke(server, filename, chunkSize, message, hostIps[host], P2P_SERVER_PORT);
+    }
+
+    /**
+     * A host informing again a file it already holds, from decoding the frame to queueing the journal record
+     */
+    @Benchmark
+    public void handleInformMsg() throws Throwable {
+        int host = ThreadLocalRandom.current().nextInt(hostCount);
+        inform(host, (host * filesPerHost) % filenames.length);
+    }
+
+    @Benchmark
+    public Object getQueryReplyMessage() throws Throwable {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return getQueryReplyMessage.invoke(server, filenames[random.nextInt(filenames.length)],
+                1 + random.nextInt(CHUNK_COUNT));
+    }
+
+    @Benchmark
+    public Object getQueryFileReplyMessage() throws Throwable {
+        return getQueryFileReplyMessage.invoke(server,
+                filenames[ThreadLocalRandom.current().nextInt(filenames.length)], 1);
+    }
+
+    @Benchmark
+    public Object getListReplyMessage() throws Throwable {
+        return getListReplyMessage.invoke(server);
+    }
+
+    /**
+     * A host leaving and informing all its files again, so that the index keeps its size.
+     * Compare with filesPerHost times handleInformMsg to get the cost of the exit alone.
+     */
+    @Benchmark
+    public void handleExitMsg() throws Throwable {
+        int host = ThreadLocalRandom.current().nextInt(hostCount);
+        handleExitMsg.invoke(server, hostIps[host], P2P_SERVER_PORT);
+        informFilesOfHost(host);
+    }
+
+    /**
+     * A QUERY as the I/O threads handle it: decoding the frame, dispatching on its type and building the reply
+     */
+    @Benchmark
+    public Object parseAndDispatchQuery() throws Throwable {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Object message = Wire.decode(queryFrames[random.nextInt(queryFrames.length)]);
+        return handleClientMsg.invoke(server, hostConnections[random.nextInt(hostCount)], message);
+    }
+}
@@ -0,0 +1,78 @@
+package p2p.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Reaches the classes under src/, which are in the unnamed package and so cannot be imported,
+ * and the private methods the benchmarks measure. Handles are looked up once in a setup method,
+ * so a benchmark only pays for a MethodHandle call.
+ */
+final class Internals {
+
+    private Internals() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalStateException(cnfe);
+        }
+    }
+
+    /**
+     * @param parameterTypes Classes, or names of classes under src/
+     */
+    static MethodHandle method(String className, String name, Object... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, toClasses(parameterTypes));
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException(roe);
+        }
+    }
+
+    /**
+     * @param parameterTypes Classes, or names of classes under src/
+     */
+    static MethodHandle constructor(String className, Object... parameterTypes) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(toClasses(parameterTypes));
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException(roe);
+        }
+    }
+
+    static Object field(Object target, String name) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(target);
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException(roe);
+        }
+    }
+
+    static Object constant(String name) {
+        try {
+            return type("Constant").getField(name).get(null);
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException(roe);
+        }
+    }
+
+    private static Class<?>[] toClasses(Object[] types) {
+        Class<?>[] classes = new Class<?>[types.length];
+        for (int i = 0; i < types.length; i++) {
+            classes[i] = types[i] instanceof String ? type((String) types[i]) : (Class<?>) types[i];
+        }
+        return classes;
+    }
+}
@@ -0,0 +1,141 @@
+package p2p.bench;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chunks per second from a running P2P server to downloaders over loopback, end to end:
+ * each benchmark thread is a download worker sending a pipelined batch of chunk requests over its own
+ * pooled connection and reading the chunks back, as P2PClient does. Multiply by CHUNK_SIZE for bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LoopbackThroughputBenchmark {
+
+    static final String FILENAME = "jmh-loopback.bin";
+    static final int CHUNK_SIZE = 512 * 1024;
+    static final int CHUNK_COUNT = 128;
+    static final int PIPELINE_DEPTH = 8;
+
+    private ServedFile servedFile;
+    private Object server;
+    private Thread serverThread;
+    private int port;
+
+    private Object connectionPool;
+    private MethodHandle borrow;
+    private MethodHandle sendQuery;
+    private MethodHandle flush;
+    private MethodHandle receiveChunk;
+    private MethodHandle close;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        servedFile = new ServedFile(FILENAME, (long) CHUNK_SIZE * CHUNK_COUNT);
+
+        try (ServerSocket freePort = new ServerSocket(0)) {
+            port = freePort.getLocalPort();
+        }
+        server = Internals.constructor("P2PTransientServer", String.class, long.class)
+                .invoke(servedFile.getDirectory(), (long) Internals.constant("DEFAULT_CHUNK_CACHE_BYTES"));
+        MethodHandle start = Internals.method("P2PTransientServer", "start", int.class, int.class);
+        serverThread = new Thread(() -> {
+            try {
+                start.invoke(server, port, (int) Internals.constant("DEFAULT_MAX_CONCURRENT_UPLOADS"));
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }, "p2p-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitUntilListening();
+
+        connectionPool = Internals.constructor("PeerConnectionPool").invoke();
+        borrow = Internals.method("PeerConnectionPool", "borrow", String.class, int.class);
+        String connection = "PeerConnectionPool$PeerConnection";
+        sendQuery = Internals.method(connection, "sendQuery", String.class, int.class, int.class);
+        flush = Internals.method(connection, "flush");
+        receiveChunk = Internals.method(connection, "receiveChunk");
+        close = Internals.method(connection, "close");
+    }
+
+    private void waitUntilListening() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("P2P server did not start on port " + port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        Internals.method("P2PTransientServer", "stop").invoke(server);
+        serverThread.join(5000);
+        servedFile.delete();
+    }
+
+    /**
+     * One download worker and its connection to the P2P server
+     */
+    @State(Scope.Thread)
+    public static class Downloader {
+        private Object connection;
+        private LoopbackThroughputBenchmark benchmark;
+        private int nextChunk;
+
+        @Setup(Level.Trial)
+        public void setUp(LoopbackThroughputBenchmark benchmark) throws Throwable {
+            this.benchmark = benchmark;
+            this.connection = benchmark.borrow.invoke(benchmark.connectionPool, "localhost", benchmark.port);
+            this.nextChunk = (int) (Thread.currentThread().getId() % CHUNK_COUNT);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            benchmark.close.invoke(connection);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public long fetchPipelinedBatch(Downloader downloader) throws Throwable {
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            downloader.nextChunk = downloader.nextChunk % CHUNK_COUNT + 1;
+            sendQuery.invoke(downloader.connection, FILENAME, downloader.nextChunk, CHUNK_SIZE);
+        }
+        flush.invoke(downloader.connection);
+
+        long bytesReceived = 0;
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            bytesReceived += ((byte[]) receiveChunk.invoke(downloader.connection)).length;
+        }
+        return bytesReceived;
+    }
+}
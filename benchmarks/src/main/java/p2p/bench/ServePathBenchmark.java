@@ -0,0 +1,98 @@
+package p2p.bench;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The P2P server answering a chunk request, from looking the file up to the chunk being written to a loopback
+ * socket, whose other end a thread reads and throws away. With no cache every chunk goes through transferTo,
+ * with a cache larger than the file every chunk is served from memory once it has missed twice.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServePathBenchmark {
+
+    static final String FILENAME = "jmh-serve.bin";
+    static final int CHUNK_COUNT = 128;
+
+    @Param({"0", "256"})
+    public int cacheMB;
+
+    @Param({"262144", "1048576"})
+    public int chunkSize;
+
+    private ServedFile servedFile;
+    private Object server;
+    private MethodHandle sendP2PResponse;
+
+    private SocketChannel serverSide;
+    private SocketChannel clientSide;
+    private Thread drainThread;
+    private int nextChunk = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        servedFile = new ServedFile(FILENAME, (long) chunkSize * CHUNK_COUNT);
+        server = Internals.constructor("P2PTransientServer", String.class, long.class)
+                .invoke(servedFile.getDirectory(), cacheMB * 1024L * 1024);
+        sendP2PResponse = Internals.method("P2PTransientServer", "sendP2PResponse",
+                SocketChannel.class, String.class, int.class, int.class, boolean.class);
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            clientSide = SocketChannel.open(listener.getLocalAddress());
+            serverSide = listener.accept();
+        }
+
+        drainThread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            try {
+                while (clientSide.read(buffer) != -1) {
+                    buffer.clear();
+                }
+            } catch (IOException ioe) {
+                // closed by tearDown
+            }
+        }, "drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        serverSide.close();
+        clientSide.close();
+        drainThread.join();
+        servedFile.delete();
+    }
+
+    @Benchmark
+    public void sendP2PResponse() throws Throwable {
+        nextChunk = nextChunk % CHUNK_COUNT + 1;
+        sendP2PResponse.invoke(server, serverSide, FILENAME, nextChunk, chunkSize, false);
+    }
+}
@@ -0,0 +1,43 @@
+package p2p.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * A file of random bytes in a temporary directory of its own, for a P2P server to serve from,
+ * so that running the benchmarks never touches the files the working directory shares
+ */
+final class ServedFile {
+
+    private final Path directory;
+    private final Path path;
+
+    ServedFile(String fileName, long size) throws IOException {
+        directory = Files.createTempDirectory("p2p-bench");
+        path = directory.resolve(fileName);
+
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(42);
+        try (OutputStream output = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * @return the directory to point the P2P server at, ending with a separator as the server expects
+     */
+    String getDirectory() {
+        return directory + "/";
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,64 @@
+package p2p.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds and reads WireCodec frames from the benchmarks
+ */
+final class Wire {
+
+    static final byte TYPE_INFORM = (byte) Internals.constant("TYPE_INFORM");
+    static final byte TYPE_QUERY = (byte) Internals.constant("TYPE_QUERY");
+    static final byte TYPE_QUERY_FILE = (byte) Internals.constant("TYPE_QUERY_FILE");
+    static final byte TYPE_CHUNK_REQUEST = (byte) Internals.constant("TYPE_CHUNK_REQUEST");
+
+    private static final String FRAME_WRITER = "WireCodec$FrameWriter";
+    private static final MethodHandle NEW_WRITER = Internals.constructor(FRAME_WRITER, byte.class);
+    private static final MethodHandle PUT_INT = Internals.method(FRAME_WRITER, "putInt", int.class);
+    private static final MethodHandle PUT_STRING = Internals.method(FRAME_WRITER, "putString", String.class);
+    private static final MethodHandle PUT_BYTES = Internals.method(FRAME_WRITER, "putBytes", byte[].class);
+    private static final MethodHandle FINISH = Internals.method(FRAME_WRITER, "finish");
+
+    static final MethodHandle DECODE_FRAME = Internals.method("WireCodec", "decodeFrame", ByteBuffer.class);
+    static final MethodHandle GET_INT = Internals.method("WireCodec$Frame", "getInt");
+    static final MethodHandle GET_STRING = Internals.method("WireCodec$Frame", "getString");
+
+    private Wire() {
+    }
+
+    /**
+     * @param fields Strings, Integers and byte arrays, written in order
+     * @return the encoded frame, as bytes so that every invocation can decode a fresh copy
+     */
+    static byte[] frame(byte type, Object... fields) {
+        try {
+            Object writer = NEW_WRITER.invoke(type);
+            for (Object field : fields) {
+                if (field instanceof String) {
+                    PUT_STRING.invoke(writer, (String) field);
+                } else if (field instanceof byte[]) {
+                    PUT_BYTES.invoke(writer, (byte[]) field);
+                } else {
+                    PUT_INT.invoke(writer, (int) (Integer) field);
+                }
+            }
+            ByteBuffer frame = (ByteBuffer) FINISH.invoke(writer);
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            return bytes;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static Object decode(byte[] frame) throws Throwable {
+        return DECODE_FRAME.invoke(ByteBuffer.wrap(frame));
+    }
+
+    static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,146 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the chunks that are asked for most in memory, up to a limit on their total size,
+ * evicting the least recently used chunk first.
+ * A chunk is only cached the second time it misses within a short history of misses, so that a file
+ * downloaded once does not push hot chunks out. Chunks that miss are served straight from the file.
+ */
+public class ChunkCache {
+
+    private final long maxBytes;
+    private long cachedBytes = 0;
+
+    // Access ordered, so iteration starts at the least recently used chunk
+    private final LinkedHashMap<Key, ByteBuffer> chunks = new LinkedHashMap<>(256, 0.75f, true);
+
+    // Chunks that missed once recently, to decide which chunks are worth caching
+    private final LinkedHashMap<Key, Boolean> recentMisses = new LinkedHashMap<Key, Boolean>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > Constant.CHUNK_CACHE_MISS_HISTORY;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ChunkCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the chunk ready to be written, or null if it is not cached
+     */
+    public ByteBuffer get(String fileName, int chunkNumber, int chunkSize) {
+        ByteBuffer chunk;
+        synchronized (this) {
+            chunk = chunks.get(new Key(fileName, chunkNumber, chunkSize));
+        }
+
+        if (chunk == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return chunk.duplicate();
+    }
+
+    /**
+     * Records a miss of a chunk that is about to be read from its file
+     * @return whether the chunk missed recently as well and should be put in the cache once read
+     */
+    public synchronized boolean shouldAdmit(String fileName, int chunkNumber, int chunkSize, int length) {
+        if (length > maxBytes) {
+            return false;
+        }
+        Key key = new Key(fileName, chunkNumber, chunkSize);
+        if (recentMisses.remove(key) != null) {
+            return true;
+        }
+        recentMisses.put(key, Boolean.TRUE);
+        return false;
+    }
+
+    public synchronized void put(String fileName, int chunkNumber, int chunkSize, ByteBuffer chunk) {
+        ByteBuffer oldChunk = chunks.put(new Key(fileName, chunkNumber, chunkSize), chunk);
+        if (oldChunk != null) {
+            cachedBytes -= oldChunk.remaining();
+        }
+        cachedBytes += chunk.remaining();
+
+        Iterator<ByteBuffer> leastRecentlyUsed = chunks.values().iterator();
+        while (cachedBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            cachedBytes -= leastRecentlyUsed.next().remaining();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Drops every chunk of a file, such as when the file has changed on disk
+     */
+    public synchronized void invalidate(String fileName) {
+        Iterator<Map.Entry<Key, ByteBuffer>> entries = chunks.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = entries.next();
+            if (entry.getKey().fileName.equals(fileName)) {
+                cachedBytes -= entry.getValue().remaining();
+                entries.remove();
+            }
+        }
+        recentMisses.keySet().removeIf(key -> key.fileName.equals(fileName));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Chunk cache: %d hits, %d misses (%.1f%% hit rate), %d bytes cached",
+                getHits(), getMisses(), getHitRate() * 100, getCachedBytes());
+    }
+
+    private static class Key {
+        private final String fileName;
+        private final int chunkNumber;
+        private final int chunkSize;
+
+        public Key(String fileName, int chunkNumber, int chunkSize) {
+            this.fileName = fileName;
+            this.chunkNumber = chunkNumber;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other == this
+                    || (other instanceof Key
+                    && this.chunkNumber == ((Key) other).chunkNumber
+                    && this.chunkSize == ((Key) other).chunkSize
+                    && this.fileName.equals(((Key) other).fileName));
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.fileName.hashCode() * 31 + this.chunkNumber) * 31 + this.chunkSize;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates chunks on the wire. A downloader offers to take deflated chunks in its chunk requests, and the
+ * P2P server deflates a chunk only when that makes it noticeably smaller, sending it as it is otherwise.
+ * Files whose type is already compressed are never tried.
+ */
+public class ChunkCompressor {
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(
+            () -> new Deflater(Constant.CHUNK_COMPRESSION_LEVEL, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * @return whether chunks of the file may be worth deflating, judging by its extension
+     */
+    public static boolean isCompressibleType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return true;
+        }
+        String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return !Constant.INCOMPRESSIBLE_FILE_EXTENSIONS.contains(extension);
+    }
+
+    /**
+     * Deflates a chunk, giving up as soon as the output would not be at least
+     * Constant.CHUNK_COMPRESSION_MIN_SAVING smaller than the chunk
+     * @return the deflated chunk ready to be written, or null if the chunk does not compress well enough
+     */
+    public static ByteBuffer deflate(ByteBuffer chunk) {
+        int length = chunk.remaining();
+        int maxDeflatedLength = (int) (length * (1 - Constant.CHUNK_COMPRESSION_MIN_SAVING));
+        ByteBuffer deflated = ByteBuffer.allocate(maxDeflatedLength);
+
+        Deflater deflater = DEFLATERS.get();
+        try {
+            deflater.setInput(chunk.duplicate());
+            deflater.finish();
+            deflater.deflate(deflated);
+            if (!deflater.finished()) {
+                return null;
+            }
+        } finally {
+            deflater.reset();
+        }
+        deflated.flip();
+        return deflated;
+    }
+
+    /**
+     * @param deflated The deflated chunk, as sent by the P2P server
+     * @param length The length of the chunk before it was deflated
+     */
+    public static byte[] inflate(byte[] deflated, int length) throws IOException {
+        if (length < 0 || length > Constant.MAX_CHUNK_SIZE) {
+            throw new IOException("Deflated chunk claims a length of " + length + " bytes");
+        }
+        byte[] chunk = new byte[length];
+
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(deflated);
+            int inflatedLength = inflater.inflate(chunk);
+            if (inflatedLength != length || !inflater.finished()) {
+                throw new IOException("Deflated chunk inflated to " + inflatedLength + " bytes instead of " + length);
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("Corrupt deflated chunk: " + dfe.getMessage());
+        } finally {
+            inflater.reset();
+        }
+        return chunk;
+    }
+}
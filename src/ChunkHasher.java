@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Content hashes of chunks. The peer that informs a file first sends the hash of every chunk,
+ * the directory server hands them out with the chunk map, and downloaders check every chunk they receive.
+ */
+public class ChunkHasher {
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(Constant.CHUNK_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    });
+
+    /**
+     * @return a pool of daemon threads for hashing, one per processor
+     */
+    public static ExecutorService newHashWorkers() {
+        return Executors.newFixedThreadPool(Constant.HASH_WORKERS, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static byte[] hash(byte[] chunk) {
+        return DIGESTS.get().digest(chunk);
+    }
+
+    /**
+     * @param expectedHashes The hashes of all chunks of a file, one after another
+     * @return whether the chunk matches its hash in expectedHashes
+     */
+    public static boolean matches(byte[] chunk, byte[] expectedHashes, int chunkNumber) {
+        int offset = (chunkNumber - 1) * Constant.CHUNK_HASH_SIZE;
+        return Arrays.equals(hash(chunk), 0, Constant.CHUNK_HASH_SIZE,
+                expectedHashes, offset, offset + Constant.CHUNK_HASH_SIZE);
+    }
+
+    /**
+     * Hashes every chunk of a file, spreading the chunks over the hash workers
+     * @return the hashes of all chunks, one after another
+     */
+    public static byte[] hashFile(Path path, int chunkSize, int chunkCount, ExecutorService hashWorkers)
+            throws IOException {
+        byte[] hashes = new byte[chunkCount * Constant.CHUNK_HASH_SIZE];
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<Future<?>> pendingHashes = new ArrayList<>(chunkCount);
+            for (int chunkNumber = 1; chunkNumber <= chunkCount; chunkNumber++) {
+                int chunkIndex = chunkNumber - 1;
+                pendingHashes.add(hashWorkers.submit(() -> {
+                    byte[] hash = hash(readChunk(file, chunkSize, chunkIndex));
+                    System.arraycopy(hash, 0, hashes, chunkIndex * Constant.CHUNK_HASH_SIZE, hash.length);
+                    return null;
+                }));
+            }
+
+            for (Future<?> pendingHash : pendingHashes) {
+                pendingHash.get();
+            }
+        } catch (ExecutionException ee) {
+            throw new IOException("Failed to hash " + path, ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + path, ie);
+        }
+
+        return hashes;
+    }
+
+    private static byte[] readChunk(FileChannel file, int chunkSize, int chunkIndex) throws IOException {
+        long position = (long) chunkSize * chunkIndex;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, file.size() - position));
+        while (chunk.hasRemaining()) {
+            if (file.read(chunk, position + chunk.position()) == -1) {
+                throw new IOException("File shrank while it was being hashed");
+            }
+        }
+        return chunk.array();
+    }
+}
@@ -0,0 +1,356 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The directory server's record of which hosts hold which chunks of which files.
+ * Hosts are interned to integer ids, and the chunks a host holds of a file are kept as one ChunkRangeSet.
+ * Removing a host therefore costs one map removal per file it holds, not one per chunk.
+ * Reads take no lock. Writes take the lock stripe of the host they are about, then of the file they touch.
+ * A removed host is forgotten together with its lease, and its id is given to the next new host.
+ */
+public class ChunkIndex {
+
+    private final ConcurrentHashMap<String, FileEntry> files = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Host, Integer> hostIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Host> hosts = new ConcurrentHashMap<>();
+    private final AtomicInteger nextHostId = new AtomicInteger();
+
+    // Ids of forgotten hosts, handed out again so that ids stay dense
+    private final ConcurrentLinkedQueue<Integer> freeHostIds = new ConcurrentLinkedQueue<>();
+
+    // The files each host holds chunks of, by host id
+    private final ConcurrentHashMap<Integer, Set<String>> filesOfHosts = new ConcurrentHashMap<>();
+
+    // When the lease of each host runs out, by host id. Hosts renew it by informing or sending heartbeats.
+    private final ConcurrentHashMap<Integer, Long> leaseExpiries = new ConcurrentHashMap<>();
+
+    private final Object[] fileLocks;
+    private final Object[] hostLocks;
+
+    public ChunkIndex() {
+        fileLocks = new Object[Constant.DIRECTORY_LOCK_STRIPES];
+        hostLocks = new Object[Constant.DIRECTORY_LOCK_STRIPES];
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new Object();
+            hostLocks[i] = new Object();
+        }
+    }
+
+    private Object getFileLock(String filename) {
+        return fileLocks[Math.floorMod(filename.hashCode(), fileLocks.length)];
+    }
+
+    /**
+     * @return the lock every change about a host is made under. Callers that journal a change hold it
+     * as well, so that the journal records changes about the same host in the order they were made.
+     */
+    public Object getHostLock(Host host) {
+        return hostLocks[Math.floorMod(host.hashCode(), hostLocks.length)];
+    }
+
+    /**
+     * Must be called under the host's lock, so that the id cannot be released while it is used
+     */
+    private int getHostId(Host host) {
+        Integer hostId = hostIds.get(host);
+        if (hostId != null) {
+            return hostId;
+        }
+        Integer freeHostId = freeHostIds.poll();
+        int newHostId = freeHostId != null ? freeHostId : nextHostId.getAndIncrement();
+        hosts.put(newHostId, host);
+        hostIds.put(host, newHostId);
+        return newHostId;
+    }
+
+    /**
+     * Records that a host holds the chunks from firstChunkNumber to lastChunkNumber inclusive of a file
+     * @param chunkSize The chunk size of the file, only kept if the file is not known yet
+     * @return false, and nothing recorded, if the file is known with another chunk size
+     * or its hashes end before lastChunkNumber
+     */
+    public boolean addChunks(String filename, int chunkSize, Host host, int firstChunkNumber, int lastChunkNumber) {
+        synchronized (getHostLock(host)) {
+            return addChunks(filename, chunkSize, getHostId(host), firstChunkNumber, lastChunkNumber);
+        }
+    }
+
+    private boolean addChunks(String filename, int chunkSize, int hostId, int firstChunkNumber, int lastChunkNumber) {
+        synchronized (getFileLock(filename)) {
+            // The chunk size of a file is fixed by whoever informs it first
+            FileEntry file = files.computeIfAbsent(filename, key -> new FileEntry(key, chunkSize));
+            if (file.chunkSize != chunkSize
+                    || (file.chunkHashes != null && lastChunkNumber > file.getHashedChunkCount())) {
+                return false;
+            }
+            if (lastChunkNumber > file.chunkCount) {
+                file.chunkCount = lastChunkNumber;
+            }
+            file.holdings.computeIfAbsent(hostId, key -> new ChunkRangeSet())
+                    .add(firstChunkNumber, lastChunkNumber);
+
+            // Done inside compute so that removing the same host cannot drop its entry in between
+            filesOfHosts.compute(hostId, (key, filesOfHost) -> {
+                if (filesOfHost == null) {
+                    filesOfHost = ConcurrentHashMap.newKeySet();
+                }
+                filesOfHost.add(file.filename);
+                return filesOfHost;
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the content hashes of every chunk of a file, unless the file already has them.
+     * The file is known from then on, with the given chunk size if it was not known yet.
+     * @param chunkHashes The hashes of chunk 1 onwards, one after another
+     * @return false, and nothing recorded, if the file is known with another chunk size, with other hashes,
+     * or with chunks past the last of these hashes
+     */
+    public boolean setChunkHashes(String filename, int chunkSize, byte[] chunkHashes) {
+        synchronized (getFileLock(filename)) {
+            FileEntry file = files.computeIfAbsent(filename, key -> new FileEntry(key, chunkSize));
+            if (file.chunkSize != chunkSize) {
+                return false;
+            }
+            if (file.chunkHashes != null) {
+                return Arrays.equals(file.chunkHashes, chunkHashes);
+            }
+            if (file.chunkCount > chunkHashes.length / Constant.CHUNK_HASH_SIZE) {
+                return false;
+            }
+            file.chunkHashes = chunkHashes;
+            return true;
+        }
+    }
+
+    /**
+     * Forgets every chunk a host holds and its lease, then the host itself.
+     * Files that no host holds any more are forgotten as well.
+     * @return the id the host had, free to be given to another host, or -1 if the host was not known
+     */
+    public int removeHost(Host host) {
+        synchronized (getHostLock(host)) {
+            Integer hostId = hostIds.get(host);
+            if (hostId == null) {
+                return -1;
+            }
+            removeHost(host, hostId);
+            return hostId;
+        }
+    }
+
+    /**
+     * Removes a host as removeHost does, but only if its lease has run out before nowMillis.
+     * The lease is checked under the host's lock, so a host that renewed it since it was found expired stays.
+     * @return the id the host had, or -1 if the host was not removed
+     */
+    public int removeHostIfExpired(Host host, long nowMillis) {
+        synchronized (getHostLock(host)) {
+            Integer hostId = hostIds.get(host);
+            Long expiryMillis = hostId == null ? null : leaseExpiries.get(hostId);
+            if (expiryMillis == null || expiryMillis >= nowMillis) {
+                return -1;
+            }
+            removeHost(host, hostId);
+            return hostId;
+        }
+    }
+
+    private void removeHost(Host host, int hostId) {
+        Set<String> filesOfHost = filesOfHosts.remove(hostId);
+        if (filesOfHost != null) {
+            for (String filename : filesOfHost) {
+                synchronized (getFileLock(filename)) {
+                    FileEntry file = files.get(filename);
+                    if (file != null) {
+                        file.holdings.remove(hostId);
+                        if (file.holdings.isEmpty()) {
+                            files.remove(filename);
+                        }
+                    }
+                }
+            }
+        }
+
+        leaseExpiries.remove(hostId);
+        hostIds.remove(host);
+        hosts.remove(hostId);
+        freeHostIds.add(hostId);
+    }
+
+    /**
+     * Forgets a file and every chunk of it that any host holds, such as when the file has moved to another shard
+     */
+    public void removeFile(String filename) {
+        synchronized (getFileLock(filename)) {
+            FileEntry file = files.remove(filename);
+            if (file == null) {
+                return;
+            }
+            for (int hostId : file.holdings.keySet()) {
+                filesOfHosts.computeIfPresent(hostId, (key, filesOfHost) -> {
+                    filesOfHost.remove(filename);
+                    return filesOfHost.isEmpty() ? null : filesOfHost;
+                });
+            }
+        }
+    }
+
+    /**
+     * Extends the lease of a host, so that it is not removed as dead before expiryMillis
+     */
+    public void renewLease(Host host, long expiryMillis) {
+        synchronized (getHostLock(host)) {
+            leaseExpiries.put(getHostId(host), expiryMillis);
+        }
+    }
+
+    /**
+     * @return whether a host's lease is still running. A host without a lease is taken to be live.
+     */
+    public boolean isLive(int hostId, long nowMillis) {
+        Long expiryMillis = leaseExpiries.get(hostId);
+        return expiryMillis == null || expiryMillis >= nowMillis;
+    }
+
+    /**
+     * @return the hosts whose lease ran out before nowMillis, to be removed with removeHostIfExpired
+     */
+    public List<Host> getExpiredHosts(long nowMillis) {
+        List<Host> expiredHosts = new ArrayList<>();
+        for (Map.Entry<Integer, Long> lease : leaseExpiries.entrySet()) {
+            Host host = hosts.get(lease.getKey());
+            if (lease.getValue() < nowMillis && host != null) {
+                expiredHosts.add(host);
+            }
+        }
+        return expiredHosts;
+    }
+
+    public FileEntry getFile(String filename) {
+        return files.get(filename);
+    }
+
+    public Set<String> getFilenames() {
+        return files.keySet();
+    }
+
+    public Iterable<FileEntry> getFiles() {
+        return files.values();
+    }
+
+    /**
+     * @return the id of a host, or null if it never informed anything
+     */
+    public Integer findHostId(Host host) {
+        return hostIds.get(host);
+    }
+
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return the number of hosts that hold chunks of any file
+     */
+    public int getHostCount() {
+        return filesOfHosts.size();
+    }
+
+    /**
+     * @return the host with the given id, or null if it has been removed since the id was read
+     */
+    public Host getHost(int hostId) {
+        return hosts.get(hostId);
+    }
+
+    public Set<String> getFilesOfHost(int hostId) {
+        return filesOfHosts.get(hostId);
+    }
+
+    public Set<Integer> getHostIds() {
+        return filesOfHosts.keySet();
+    }
+
+    /**
+     * A file known to the directory server, and the chunks of it that each host holds
+     */
+    public class FileEntry {
+        private final String filename;
+        private final int chunkSize;
+
+        // Highest chunk number informed so far, only raised under the file's lock stripe
+        private volatile int chunkCount;
+
+        // Content hashes of every chunk, set once by whoever informs them first and never replaced.
+        // Informs that disagree with them are refused, and they go when the last host holding the file does.
+        private volatile byte[] chunkHashes;
+
+        // The chunks each host holds, by host id
+        private final ConcurrentHashMap<Integer, ChunkRangeSet> holdings = new ConcurrentHashMap<>();
+
+        private FileEntry(String filename, int chunkSize) {
+            this.filename = filename;
+            this.chunkSize = chunkSize;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        /**
+         * @return the number of chunks whose hashes are known, from chunk 1 onwards
+         */
+        public int getHashedChunkCount() {
+            byte[] hashes = chunkHashes;
+            return hashes == null ? 0 : hashes.length / Constant.CHUNK_HASH_SIZE;
+        }
+
+        public byte[] getChunkHashes() {
+            return chunkHashes;
+        }
+
+        public ChunkRangeSet getChunksOfHost(int hostId) {
+            return holdings.get(hostId);
+        }
+
+        public Set<Integer> getHolderIds() {
+            return holdings.keySet();
+        }
+
+        public Set<Map.Entry<Integer, ChunkRangeSet>> getHoldings() {
+            return holdings.entrySet();
+        }
+
+        /**
+         * @return the ids of the live hosts that hold the given chunk
+         */
+        public List<Integer> getHostsOfChunk(int chunkNumber) {
+            List<Integer> hostsOfChunk = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Integer, ChunkRangeSet> holding : holdings.entrySet()) {
+                if (holding.getValue().contains(chunkNumber) && isLive(holding.getKey(), now)) {
+                    hostsOfChunk.add(holding.getKey());
+                }
+            }
+            return hostsOfChunk;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/**
+ * A set of chunk numbers stored as sorted, non-overlapping runs of consecutive chunks.
+ * A host holding a whole file takes a single run no matter how many chunks the file has.
+ * The runs array is replaced rather than modified, so readers never need a lock.
+ * Writers must be serialized by the caller.
+ */
+public class ChunkRangeSet {
+
+    // Pairs of first and last chunk number of each run, in increasing order
+    private volatile int[] runs = new int[0];
+
+    /**
+     * Adds the chunks from firstChunkNumber to lastChunkNumber inclusive, merging with adjacent runs
+     */
+    public void add(int firstChunkNumber, int lastChunkNumber) {
+        int[] oldRuns = runs;
+        int[] newRuns = new int[oldRuns.length + 2];
+        int length = 0;
+        int i = 0;
+
+        // Runs that end before the new one starts, without touching it.
+        // Adjacency is checked in long arithmetic, since chunk numbers may reach Integer.MAX_VALUE.
+        while (i < oldRuns.length && oldRuns[i + 1] < (long) firstChunkNumber - 1) {
+            newRuns[length++] = oldRuns[i];
+            newRuns[length++] = oldRuns[i + 1];
+            i += 2;
+        }
+
+        // Runs that overlap or touch the new one are merged into it
+        int first = firstChunkNumber;
+        int last = lastChunkNumber;
+        while (i < oldRuns.length && oldRuns[i] <= (long) lastChunkNumber + 1) {
+            first = Math.min(first, oldRuns[i]);
+            last = Math.max(last, oldRuns[i + 1]);
+            i += 2;
+        }
+        newRuns[length++] = first;
+        newRuns[length++] = last;
+
+        while (i < oldRuns.length) {
+            newRuns[length++] = oldRuns[i++];
+        }
+
+        runs = length == newRuns.length ? newRuns : Arrays.copyOf(newRuns, length);
+    }
+
+    public boolean contains(int chunkNumber) {
+        int[] currentRuns = runs;
+        int low = 0;
+        int high = currentRuns.length / 2 - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (currentRuns[2 * middle + 1] < chunkNumber) {
+                low = middle + 1;
+            } else if (currentRuns[2 * middle] > chunkNumber) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return runs.length == 0;
+    }
+
+    /**
+     * @return the number of chunks in the set
+     */
+    public long size() {
+        int[] currentRuns = runs;
+        long size = 0;
+        for (int i = 0; i < currentRuns.length; i += 2) {
+            size += currentRuns[i + 1] - currentRuns[i] + 1;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the runs that fall between firstChunkNumber and lastChunkNumber inclusive, cut to those bounds,
+     * as a count followed by the first and last chunk number of each run
+     * @return the number of runs written
+     */
+    public int writeRanges(WireCodec.FrameWriter frame, int firstChunkNumber, int lastChunkNumber) {
+        int[] currentRuns = runs;
+        int countPosition = frame.position();
+        int count = 0;
+        frame.putInt(0);
+
+        for (int i = 0; i < currentRuns.length && currentRuns[i] <= lastChunkNumber; i += 2) {
+            if (currentRuns[i + 1] < firstChunkNumber) {
+                continue;
+            }
+            frame.putInt(Math.max(currentRuns[i], firstChunkNumber))
+                    .putInt(Math.min(currentRuns[i + 1], lastChunkNumber));
+            count++;
+        }
+
+        frame.putIntAt(countPosition, count);
+        return count;
+    }
+
+    /**
+     * @return the runs in the form "1-120,200-240", for printing
+     */
+    @Override
+    public String toString() {
+        int[] currentRuns = runs;
+        StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < currentRuns.length; i += 2) {
+            if (i > 0) {
+                ranges.append(',');
+            }
+            ranges.append(currentRuns[i]);
+            if (currentRuns[i + 1] != currentRuns[i]) {
+                ranges.append('-').append(currentRuns[i + 1]);
+            }
+        }
+        return ranges.toString();
+    }
+}
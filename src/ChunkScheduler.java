@@ -0,0 +1,87 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A policy for the order in which the missing chunks of a download are requested.
+ * The order only decides when a chunk is asked for, chunks are still written at their own place in the part file.
+ */
+public interface ChunkScheduler {
+
+    String RAREST_FIRST = "rarest-first";
+    String SEQUENTIAL = "sequential";
+
+    /**
+     * @return the numbers of the chunks that the manifest does not mark as held, in the order to request them
+     */
+    int[] schedule(FileChunkMap chunkMap, DownloadManifest manifest);
+
+    /**
+     * @return the policy of the given name, one of RAREST_FIRST and SEQUENTIAL
+     */
+    static ChunkScheduler forName(String name) {
+        switch (name) {
+            case RAREST_FIRST:
+                return new RarestFirst();
+            case SEQUENTIAL:
+                return new Sequential();
+            default:
+                throw new IllegalArgumentException("Unknown chunk scheduler " + name);
+        }
+    }
+
+    /**
+     * From the first chunk to the last, so that the file can be used from its start while it downloads
+     */
+    class Sequential implements ChunkScheduler {
+        @Override
+        public int[] schedule(FileChunkMap chunkMap, DownloadManifest manifest) {
+            int[] order = new int[manifest.getChunkCount() - manifest.getHeldCount()];
+            int next = 0;
+            for (int chunkNumber = 1; chunkNumber <= manifest.getChunkCount(); chunkNumber++) {
+                if (!manifest.isHeld(chunkNumber)) {
+                    order[next++] = chunkNumber;
+                }
+            }
+            return order;
+        }
+    }
+
+    /**
+     * The chunks held by the fewest peers first, so that they spread before their holders leave and
+     * downloaders do not all compete for the same chunks. Chunks held by as many peers as each other
+     * come in a random order, which is different for every downloader.
+     */
+    class RarestFirst implements ChunkScheduler {
+        @Override
+        public int[] schedule(FileChunkMap chunkMap, DownloadManifest manifest) {
+            int[] order = new Sequential().schedule(chunkMap, manifest);
+
+            // Shuffled first, then sorted by holder count with a stable counting sort
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int chunkNumber = order[i];
+                order[i] = order[j];
+                order[j] = chunkNumber;
+            }
+
+            int maxHolderCount = 0;
+            for (int chunkNumber : order) {
+                maxHolderCount = Math.max(maxHolderCount, chunkMap.getHolders(chunkNumber).size());
+            }
+
+            int[] firstOfCount = new int[maxHolderCount + 2];
+            for (int chunkNumber : order) {
+                firstOfCount[chunkMap.getHolders(chunkNumber).size() + 1]++;
+            }
+            for (int count = 1; count < firstOfCount.length; count++) {
+                firstOfCount[count] += firstOfCount[count - 1];
+            }
+
+            int[] sorted = new int[order.length];
+            for (int chunkNumber : order) {
+                sorted[firstOfCount[chunkMap.getHolders(chunkNumber).size()]++] = chunkNumber;
+            }
+            return sorted;
+        }
+    }
+}
@@ -1,29 +1,128 @@
+import java.util.Set;
+import java.util.zip.Deflater;
+
 public class Constant {
     public static final String COMMAND_DOWNLOAD = "DOWNLOAD";
     public static final String COMMAND_INFORM = "INFORM";
     public static final String COMMAND_QUERY = "QUERY";
     public static final String COMMAND_LIST = "LIST";
     public static final String COMMAND_EXIT = "EXIT";
-    public static final String COMMAND_IPCONFIG = "IPCONFIG";
+    public static final String COMMAND_STATS = "STATS";
 
     public static final int DIR_SERVER_PORT = 9090;
     public static final int P2P_SERVER_PORT = 9019;
-    public static final int CHUNK_SIZE = 1024;
+
+    // Chunk size is chosen per file when it is first informed, aiming for about TARGET_CHUNKS_PER_FILE chunks
+    public static final int MIN_CHUNK_SIZE = 256 * 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int TARGET_CHUNKS_PER_FILE = 1024;
+    // The directory refuses chunks past what a file of MAX_FILE_SIZE would have, and past MAX_CHUNKS_PER_FILE
+    public static final long MAX_FILE_SIZE = 1L << 42;
+    public static final int MAX_CHUNKS_PER_FILE = 1 << 20;
+    public static final int QUERY_FILE_PAGE_CHUNKS = 4096;
+    public static final int DIRECTORY_LOCK_STRIPES = 64;
+    public static final int DIR_SERVER_IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int DIR_SERVER_BACKLOG = 1024;
+    public static final int DIR_SERVER_READ_BUFFER_SIZE = 64 * 1024;
+    public static final String DIR_SERVER_STATE_DIRECTORY = "directory-state/";
+    public static final int JOURNAL_MAX_BATCH_RECORDS = 4096;
+    public static final int JOURNAL_SNAPSHOT_RECORDS = 100000;
+    public static final int JOURNAL_WRITE_ATTEMPTS = 3;
+    public static final long JOURNAL_RETRY_DELAY_MS = 200;
+    public static final int SHARD_VIRTUAL_NODES = 128;
+    public static final int SHARD_HANDOFF_RETRY_MS = 5000;
+    public static final int HOST_LEASE_MS = 30000;
+    public static final int REAPER_INTERVAL_MS = 5000;
+    public static final int HEARTBEAT_INTERVAL_MS = 10000;
+
+    public static final String CHUNK_HASH_ALGORITHM = "SHA-256";
+    public static final int CHUNK_HASH_SIZE = 32;
+    public static final int HASH_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    public static final int DEFAULT_DOWNLOAD_WORKERS = 8;
+    public static final int DOWNLOAD_CHUNKS_IN_FLIGHT_PER_WORKER = 4;
+    public static final int DOWNLOAD_INFORM_BATCH_CHUNKS = 16;
+    public static final int PEER_PIPELINE_DEPTH = 8;
+    public static final int MAX_IDLE_CONNECTIONS_PER_PEER = 4;
+    public static final int PEER_CONNECTION_IDLE_TIMEOUT_MS = 20000;
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 16;
+    public static final int P2P_SERVER_CLIENT_TIMEOUT_MS = 30000;
+    public static final int P2P_SERVER_MAX_CONNECTIONS = 1024;
+    public static final long P2P_SERVER_STOP_GRACE_MS = 10000;
+    public static final long DEFAULT_CHUNK_CACHE_BYTES = 256L * 1024 * 1024;
+    public static final int CHUNK_CACHE_MISS_HISTORY = 4096;
+    public static final int SERVED_FILE_CHECK_INTERVAL_MS = 1000;
+    public static final boolean DEFAULT_CHUNK_COMPRESSION = true;
+    public static final int CHUNK_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    public static final double CHUNK_COMPRESSION_MIN_SAVING = 0.1;
+    public static final int INCOMPRESSIBLE_CHUNKS_BEFORE_SKIPPING_FILE = 4;
+    public static final int DEFLATED_CHUNK_CACHE_DIVISOR = 4; // deflated chunks are cached in a quarter of the chunk cache size, on top of it
+    public static final Set<String> INCOMPRESSIBLE_FILE_EXTENSIONS = Set.of("7z", "avi", "bz2", "docx", "flac",
+            "gif", "gz", "jpeg", "jpg", "m4a", "mkv", "mov", "mp3", "mp4", "odt", "ogg", "pdf", "png", "pptx",
+            "rar", "webm", "webp", "xlsx", "xz", "zip", "zst");
+    public static final String DEFAULT_PEER_SELECTOR = PeerSelector.POWER_OF_TWO_CHOICES;
+    public static final float PEER_STATS_SMOOTHING = 0.25f;
+    public static final String DEFAULT_CHUNK_SCHEDULER = ChunkScheduler.RAREST_FIRST;
 
     public static final String DEFAULT_DIRECTORY = "resource/";
+    public static final String PART_FILE_SUFFIX = ".part";
+    public static final String MANIFEST_FILE_SUFFIX = ".chunks";
+
+    // Message types of the binary protocol, see WireCodec for the framing
+    public static final byte TYPE_INFORM = 1;
+    public static final byte TYPE_QUERY = 2;
+    public static final byte TYPE_QUERY_FILE = 3;
+    public static final byte TYPE_LIST = 4;
+    public static final byte TYPE_EXIT = 5;
+    public static final byte TYPE_CHUNK_REQUEST = 6;
+    public static final byte TYPE_HEARTBEAT = 7;
+    public static final byte TYPE_PEER_REPORT = 8;
+    public static final byte TYPE_STATS = 9;
+    public static final byte TYPE_HELLO = 10;
+    public static final byte TYPE_SHARD_MAP = 11;
+    public static final byte TYPE_SHARD_MAP_UPDATE = 12;
+    public static final byte TYPE_HANDOFF = 13;
+    public static final byte TYPE_ACK = 20;
+    public static final byte TYPE_QUERY_REPLY = 21;
+    public static final byte TYPE_QUERY_FILE_REPLY = 22;
+    public static final byte TYPE_LIST_REPLY = 23;
+    public static final byte TYPE_GOODBYE = 24;
+    public static final byte TYPE_CHUNK = 25;
+    public static final byte TYPE_CHUNK_NOT_EXIST = 26;
+    public static final byte TYPE_FILE_NOT_EXIST = 27;
+    public static final byte TYPE_ERROR = 28;
+    public static final byte TYPE_CHUNK_NOT_HELD = 29;
+    public static final byte TYPE_STATS_REPLY = 30;
+    public static final byte TYPE_CHUNK_DEFLATED = 31;
+    public static final byte TYPE_SHARD_MAP_REPLY = 32;
+    public static final byte TYPE_WRONG_SHARD = 33;
+    public static final byte TYPE_JOURNAL_INFORM = 40;
+    public static final byte TYPE_JOURNAL_EXIT = 41;
+    public static final byte TYPE_JOURNAL_SNAPSHOT = 42;
+    public static final byte TYPE_JOURNAL_DROP_FILE = 43;
+
+    // Flags a chunk request may end with, for the encodings the downloader accepts
+    public static final int CHUNK_ACCEPTS_DEFLATE = 1;
 
     public static final String MESSAGE_DELIMITER = "\r\n";
-    public static final String MESSAGE_ACK = "ACK";
-    public static final String MESSAGE_REPLY = "REPLY";
-    public static final String MESSAGE_CHUNK_NOT_EXIST = "CHUNK NOT EXIST";
-    public static final String MESSAGE_FILE_LIST_EMPTY = "FILE LIST EMPTY";
-    public static final String MESSAGE_GOODBYE = "GOODBYE";
 
     public static final String ERROR_CLIENT_INFORM_FAILED = "Inform failed";
     public static final String ERROR_INFORM_FILE_NOT_EXIST = "File informed does not exist" + MESSAGE_DELIMITER;
+    public static final String ERROR_INFORM_FILE_EMPTY = "File informed is empty, so it has no chunks to share" + MESSAGE_DELIMITER;
     public static final String ERROR_QUERY_FILE_NOT_EXIST = "File queried does not exist" + MESSAGE_DELIMITER;
     public static final String ERROR_DOWNLOAD_FILE_EXIST = "File requested already exists in directory!" + MESSAGE_DELIMITER;
     public static final String ERROR_DOWNLOAD_FILE_NOT_EXIST = "File requested does not exist" + MESSAGE_DELIMITER;
+    public static final String ERROR_DOWNLOAD_FILE_INCOMPLETE = "Some chunks of the file requested are not held by any peer"
+            + MESSAGE_DELIMITER;
     public static final String ERROR_INVALID_COMMAND = "Invalid command" + MESSAGE_DELIMITER;
+    public static final String ERROR_UNSUPPORTED_OPERATION = "This is not a supported operation.";
+    public static final String ERROR_INVALID_CHUNK_SIZE = "Chunk size is out of bounds.";
+    public static final String ERROR_INVALID_CHUNK_RANGES = "Chunk ranges are malformed.";
+    public static final String ERROR_TOO_MANY_CHUNKS = "Chunk numbers go past the largest file the directory keeps.";
+    public static final String ERROR_CHUNK_HASH_MISMATCH = "Chunk hashes do not match the chunks informed or the hashes the file is known with.";
+    public static final String ERROR_CHUNK_SIZE_MISMATCH = "The file is known with another chunk size.";
+    public static final String ERROR_JOURNAL_FAILED = "The directory journal cannot be written, so the index cannot change.";
+    public static final String ERROR_NOT_IN_SHARD_MAP = "This directory node is not in the shard map.";
+    public static final String ERROR_NOT_A_DIRECTORY_NODE = "Only directory nodes may change the shard map or hand files over.";
     public static final String ERROR_OWN_SERVER_NOT_CLOSED = "Own host server is not closed!" + MESSAGE_DELIMITER;
 }
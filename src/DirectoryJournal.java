@@ -0,0 +1,398 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the directory server's index on disk, so that a restarted directory server still knows
+ * which hosts hold which chunks without every peer informing them again.
+ *
+ * Every inform and exit, and every file handed off to another shard, is appended to a log segment as a record:
+ * a WireCodec frame followed by its CRC32. Records are written by one journal thread, which takes every record queued since its
+ * last write and forces them to disk together, so a burst of informs costs one fsync rather than one each.
+ * Replies do not wait for their record to reach the disk, so a crash of the machine can lose the last batch,
+ * which the peers concerned inform again on their next download.
+ *
+ * Once enough records have been logged, the journal thread starts a new segment and writes a snapshot:
+ * one inform record per host and file, as the index stands. Replaying the newer segments over
+ * the snapshot gives the same index, because informs, exits and dropped files can be applied again without harm.
+ */
+public class DirectoryJournal implements Runnable {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+
+    private final ChunkIndex index;
+    private final Path stateDirectory;
+
+    private final BlockingQueue<ByteBuffer> pendingRecords = new LinkedBlockingQueue<>();
+
+    // Only used by the journal thread once recovery is over
+    private FileChannel segment;
+    private long segmentNumber;
+    private long recordsSinceSnapshot = 0;
+
+    // Set once a batch could not be written after every attempt. Nothing is logged after that.
+    private volatile IOException failure;
+
+    public DirectoryJournal(ChunkIndex index, String stateDirectory) {
+        this.index = index;
+        this.stateDirectory = Paths.get(stateDirectory);
+    }
+
+    /**
+     * Rebuilds the index from the last snapshot and the log segments written after it,
+     * then opens a new segment for the records to come
+     */
+    public void recover() throws IOException {
+        new File(stateDirectory.toString()).mkdirs();
+        long startTime = System.currentTimeMillis();
+
+        long firstSegmentNumber = 0;
+        long recordCount = 0;
+        Path snapshotPath = stateDirectory.resolve(SNAPSHOT_FILE);
+        try (DataInputStream snapshot = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            WireCodec.Frame header = readRecord(snapshot);
+            if (header == null || header.getType() != Constant.TYPE_JOURNAL_SNAPSHOT) {
+                throw new IOException("Snapshot " + snapshotPath + " has no header");
+            }
+            firstSegmentNumber = header.getLong();
+            recordCount += replay(snapshot);
+        } catch (NoSuchFileException nsfe) {
+            // nothing was snapshotted yet, so every segment is replayed
+        }
+
+        // Only the records logged after the snapshot count towards the next one
+        long segmentRecordCount = 0;
+        List<Long> segmentNumbers = getSegmentNumbers();
+        for (long number : segmentNumbers) {
+            if (number < firstSegmentNumber) {
+                continue;
+            }
+            try (DataInputStream log = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(getSegmentPath(number))))) {
+                segmentRecordCount += replay(log);
+            }
+        }
+        recordCount += segmentRecordCount;
+
+        // A segment may end in a damaged record, so appending always starts in a new one
+        segmentNumber = firstSegmentNumber;
+        if (!segmentNumbers.isEmpty()) {
+            segmentNumber = Math.max(segmentNumber, segmentNumbers.get(segmentNumbers.size() - 1) + 1);
+        }
+        segment = openSegment(segmentNumber);
+        recordsSinceSnapshot = segmentRecordCount;
+
+        System.out.println("Directory state recovered from " + recordCount + " records in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Queues an inform to be logged
+     * @param ranges Pairs of first and last chunk number
+     * @param chunkHashes The hashes the inform carried, or null
+     */
+    public void logInform(Host host, String filename, int chunkSize, int[] ranges, byte[] chunkHashes) {
+        WireCodec.FrameWriter record = newInformRecord(host, filename, chunkSize);
+        record.putInt(ranges.length / 2);
+        for (int range : ranges) {
+            record.putInt(range);
+        }
+        putHashes(record, chunkHashes);
+        queue(record.finish());
+    }
+
+    public void logExit(Host host) {
+        queue(new WireCodec.FrameWriter(Constant.TYPE_JOURNAL_EXIT)
+                .putString(host.getIPAddress())
+                .putInt(host.getPortNumber())
+                .finish());
+    }
+
+    public void logDropFile(String filename) {
+        queue(new WireCodec.FrameWriter(Constant.TYPE_JOURNAL_DROP_FILE)
+                .putString(filename)
+                .finish());
+    }
+
+    private void queue(ByteBuffer record) {
+        if (failure == null) {
+            pendingRecords.add(record);
+        }
+    }
+
+    /**
+     * @return whether changes to the index can still be logged. Once they cannot, the directory server
+     * must refuse them, since they would be lost on a restart.
+     */
+    public boolean isWritable() {
+        return failure == null;
+    }
+
+    /**
+     * Writes queued records in batches, each batch forced to disk at once.
+     * Stops for good if a batch cannot be written even after retrying it.
+     */
+    @Override
+    public void run() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pendingRecords.take());
+                pendingRecords.drainTo(batch, Constant.JOURNAL_MAX_BATCH_RECORDS - 1);
+
+                try {
+                    writeBatch(batch);
+                } catch (IOException ioe) {
+                    failure = ioe;
+                    pendingRecords.clear();
+                    System.err.println("The directory journal cannot be written, refusing every change to the index"
+                            + " from now on: " + ioe.getMessage());
+                    return;
+                }
+
+                recordsSinceSnapshot += batch.size();
+                batch.clear();
+
+                if (recordsSinceSnapshot >= Constant.JOURNAL_SNAPSHOT_RECORDS) {
+                    snapshot();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException ioe) {
+                // The batch is on disk, only the snapshot failed, and it is tried again after the next batch
+                System.err.println("Failed to write a directory snapshot: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes a batch and forces it to disk, up to Constant.JOURNAL_WRITE_ATTEMPTS times. Each retry starts
+     * a new segment, because the old one may end in a torn record that would stop a replay before whatever
+     * follows it. Records written twice apply twice without harm.
+     */
+    private void writeBatch(List<ByteBuffer> batch) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (attempt > 1) {
+                    segment.close();
+                    segment = openSegment(segmentNumber + 1);
+                    segmentNumber++;
+                }
+                for (ByteBuffer record : batch) {
+                    writeRecord(segment, record.duplicate());
+                }
+                segment.force(false);
+                return;
+            } catch (IOException ioe) {
+                if (attempt >= Constant.JOURNAL_WRITE_ATTEMPTS) {
+                    throw ioe;
+                }
+                System.err.println("Failed to write the directory journal, retrying: " + ioe.getMessage());
+                Thread.sleep(Constant.JOURNAL_RETRY_DELAY_MS * attempt);
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment, writes the index as it stands, then drops the segments the snapshot covers
+     */
+    private void snapshot() throws IOException {
+        long startTime = System.currentTimeMillis();
+        long snapshotSegmentNumber = segmentNumber + 1;
+        FileChannel newSegment = openSegment(snapshotSegmentNumber);
+        segment.close();
+        segment = newSegment;
+        segmentNumber = snapshotSegmentNumber;
+
+        Path snapshotPath = stateDirectory.resolve(SNAPSHOT_FILE);
+        Path tempPath = stateDirectory.resolve(SNAPSHOT_FILE + ".tmp");
+        long recordCount = 0;
+
+        try (FileChannel snapshot = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeRecord(snapshot, new WireCodec.FrameWriter(Constant.TYPE_JOURNAL_SNAPSHOT)
+                    .putLong(snapshotSegmentNumber).finish());
+
+            for (ChunkIndex.FileEntry file : index.getFiles()) {
+                byte[] chunkHashes = file.getChunkHashes();
+                for (Map.Entry<Integer, ChunkRangeSet> holding : file.getHoldings()) {
+                    Host host = index.getHost(holding.getKey());
+                    if (host == null) { // removed since
+                        continue;
+                    }
+                    WireCodec.FrameWriter record = newInformRecord(host, file.getFilename(), file.getChunkSize());
+                    holding.getValue().writeRanges(record, 1, Integer.MAX_VALUE);
+                    putHashes(record, chunkHashes);
+                    chunkHashes = null; // once per file is enough
+                    writeRecord(snapshot, record.finish());
+                    recordCount++;
+                }
+            }
+            snapshot.force(false);
+        }
+
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordsSinceSnapshot = 0;
+
+        for (long number : getSegmentNumbers()) {
+            if (number < snapshotSegmentNumber) {
+                Files.deleteIfExists(getSegmentPath(number));
+            }
+        }
+
+        System.out.println("Directory snapshot of " + recordCount + " records written in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Applies every record of a segment or snapshot to the index. A record cut short or damaged by a crash
+     * ends the replay, since nothing after it was acknowledged as written.
+     * @return the number of records applied
+     */
+    private long replay(DataInputStream log) throws IOException {
+        long recordCount = 0;
+        WireCodec.Frame record;
+        while ((record = readRecord(log)) != null) {
+            applyRecord(record);
+            recordCount++;
+        }
+        return recordCount;
+    }
+
+    private void applyRecord(WireCodec.Frame record) throws IOException {
+        if (record.getType() == Constant.TYPE_JOURNAL_DROP_FILE) {
+            index.removeFile(record.getString());
+            return;
+        }
+
+        Host host = new Host(record.getString(), record.getInt());
+
+        if (record.getType() == Constant.TYPE_JOURNAL_EXIT) {
+            index.removeHost(host);
+            return;
+        }
+
+        String filename = record.getString();
+        int chunkSize = record.getInt();
+        int rangeCount = record.getInt();
+        for (int i = 0; i < rangeCount; i++) {
+            int firstChunk = record.getInt();
+            int lastChunk = record.getInt();
+            if (firstChunk <= lastChunk) {
+                index.addChunks(filename, chunkSize, host, firstChunk, lastChunk);
+            }
+        }
+
+        int hashCount = record.getInt();
+        if (hashCount > 0) {
+            index.setChunkHashes(filename, chunkSize, record.getBytes(hashCount * Constant.CHUNK_HASH_SIZE));
+        }
+    }
+
+    /**
+     * @return the next record, or null at the end of the log or at a record that was not completely written
+     */
+    private WireCodec.Frame readRecord(DataInputStream log) throws IOException {
+        try {
+            byte[] header = new byte[WireCodec.HEADER_SIZE];
+            log.readFully(header);
+            int payloadLength = ByteBuffer.wrap(header).getInt(2);
+            if (payloadLength < 0 || payloadLength > WireCodec.MAX_PAYLOAD_SIZE) {
+                System.out.println("Ignoring the damaged end of the directory journal");
+                return null;
+            }
+
+            byte[] frame = new byte[WireCodec.HEADER_SIZE + payloadLength];
+            System.arraycopy(header, 0, frame, 0, header.length);
+            log.readFully(frame, header.length, payloadLength);
+            int checksum = log.readInt();
+
+            CRC32 crc = new CRC32();
+            crc.update(frame);
+            if ((int) crc.getValue() != checksum) {
+                System.out.println("Ignoring the damaged end of the directory journal");
+                return null;
+            }
+            return WireCodec.decodeFrame(ByteBuffer.wrap(frame));
+        } catch (EOFException eofe) {
+            return null;
+        }
+    }
+
+    private void writeRecord(FileChannel log, ByteBuffer record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+
+        ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES);
+        checksum.putInt((int) crc.getValue()).flip();
+
+        ByteBuffer[] buffers = {record, checksum};
+        while (checksum.hasRemaining()) {
+            log.write(buffers);
+        }
+    }
+
+    private static WireCodec.FrameWriter newInformRecord(Host host, String filename, int chunkSize) {
+        return new WireCodec.FrameWriter(Constant.TYPE_JOURNAL_INFORM)
+                .putString(host.getIPAddress())
+                .putInt(host.getPortNumber())
+                .putString(filename)
+                .putInt(chunkSize);
+    }
+
+    private static void putHashes(WireCodec.FrameWriter record, byte[] chunkHashes) {
+        if (chunkHashes == null) {
+            record.putInt(0);
+        } else {
+            record.putInt(chunkHashes.length / Constant.CHUNK_HASH_SIZE).putBytes(chunkHashes);
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(getSegmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private Path getSegmentPath(long number) {
+        return stateDirectory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the numbers of the log segments on disk, in increasing order
+     */
+    private List<Long> getSegmentNumbers() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        File[] files = new File(stateDirectory.toString()).listFiles();
+        if (files == null) {
+            return numbers;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
@@ -1,377 +1,1069 @@
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class DirectoryServer {
+
+    // Shared by every I/O thread
+    private ChunkIndex index;
+
+    // Every change to the index is logged, so that a restart does not forget the swarm
+    private DirectoryJournal journal;
+
+    // How fast each host serves, by host id, as reported by the peers that downloaded from it
+    private PeerStats peerStats = new PeerStats();
+    private PeerSelector peerSelector;
+
+    // The directory nodes the files are split over and which of them this is, both null if this server
+    // keeps every file itself. Replaced as a whole when a node joins.
+    private volatile ShardMap shardMap;
+    private volatile Host self;
+
+    // The IP addresses of the directory nodes, the only ones HANDOFF is taken from
+    private volatile Set<String> nodeAddresses = Collections.emptySet();
+
+    // Informs hold the read lock from checking that this node owns the file until the file is changed, and the
+    // shard map is replaced under the write lock, so no inform is taken for a file once its handoff can start
+    private final ReentrantReadWriteLock shardMapLock = new ReentrantReadWriteLock();
+
+    // Hands the files of other shards over to them, one change of the shard map at a time
+    private final ScheduledExecutorService shardHandoff = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "directory-shard-handoff");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean isHandoffRetryScheduled = new AtomicBoolean();
+
+    // Reported by the STATS command instead of printing the tables on every request
+    private final Metrics metrics = new Metrics();
+    private final LongAdder[] requestCounters = new LongAdder[Byte.MAX_VALUE + 1];
+    private final LongAdder otherRequests = metrics.counter("requests.other");
+    private final LongAdder bytesReceived = metrics.counter("bytes.received");
+    private final LongAdder bytesSent = metrics.counter("bytes.sent");
+    private final Metrics.LatencyHistogram requestLatency = metrics.histogram("request.latency");
+    private final LongAdder wrongShardReplies = metrics.counter("shard.wrong_shard_replies");
+    private final LongAdder filesHandedOff = metrics.counter("shard.files_handed_off");
+    private final AtomicInteger activeConnections = new AtomicInteger();
 
-public class DirectoryServer implements Runnable {
+    /**
+     * Constructor
+     * @param stateDirectory Where the index is kept on disk
+     * @param peerSelector Which of the hosts holding a chunk to answer a QUERY with
+     */
+    public DirectoryServer(String stateDirectory, PeerSelector peerSelector) {
+        this.index = new ChunkIndex();
+        this.journal = new DirectoryJournal(index, stateDirectory);
+        this.peerSelector = peerSelector;
+
+        requestCounters[Constant.TYPE_HELLO] = metrics.counter("requests.hello");
+        requestCounters[Constant.TYPE_INFORM] = metrics.counter("requests.inform");
+        requestCounters[Constant.TYPE_QUERY] = metrics.counter("requests.query");
+        requestCounters[Constant.TYPE_QUERY_FILE] = metrics.counter("requests.queryfile");
+        requestCounters[Constant.TYPE_LIST] = metrics.counter("requests.list");
+        requestCounters[Constant.TYPE_EXIT] = metrics.counter("requests.exit");
+        requestCounters[Constant.TYPE_HEARTBEAT] = metrics.counter("requests.heartbeat");
+        requestCounters[Constant.TYPE_PEER_REPORT] = metrics.counter("requests.peer_report");
+        requestCounters[Constant.TYPE_STATS] = metrics.counter("requests.stats");
+        requestCounters[Constant.TYPE_SHARD_MAP] = metrics.counter("requests.shard_map");
+        requestCounters[Constant.TYPE_SHARD_MAP_UPDATE] = metrics.counter("requests.shard_map_update");
+        requestCounters[Constant.TYPE_HANDOFF] = metrics.counter("requests.handoff");
+        metrics.gauge("shard.nodes", () -> shardMap == null ? 1 : shardMap.getNodes().size());
+        metrics.gauge("connections.active", activeConnections::get);
+        metrics.gauge("index.files", index::getFileCount);
+        metrics.gauge("index.hosts", index::getHostCount);
+    }
+
+    private ByteBuffer getAckMessage() {
+        return new WireCodec.FrameWriter(Constant.TYPE_ACK, 0).finish();
+    }
+
+    private ByteBuffer getQueryReplyMessage(String filename, int chunkNumber) {
+
+        ChunkIndex.FileEntry file = index.getFile(filename);
+        List<Integer> listOfHosts = file == null ? null : file.getHostsOfChunk(chunkNumber);
 
-    private HashMap<Chunk, List<Host>> firstTable;
-    private HashMap<Host, List<Chunk>> secondTable;
-    private Socket acceptedClientSocket;
+        if (listOfHosts == null || listOfHosts.isEmpty()) {
+
+            // Chunk not exists
+            return new WireCodec.FrameWriter(Constant.TYPE_CHUNK_NOT_EXIST, 0).finish();
+
+        } else {
+
+            int selectedHostId = peerSelector.select(listOfHosts, peerStats, file.getChunkSize());
+            Host selectedHost = index.getHost(selectedHostId);
+            if (selectedHost == null) { // removed since
+                return new WireCodec.FrameWriter(Constant.TYPE_CHUNK_NOT_EXIST, 0).finish();
+            }
+            peerStats.addLoad(selectedHostId, 1);
+
+            return new WireCodec.FrameWriter(Constant.TYPE_QUERY_REPLY)
+                    .putString(selectedHost.getIPAddress())
+                    .putInt(selectedHost.getPortNumber())
+                    .putInt(file.getChunkSize())
+                    .finish();
+        }
+
+    }
 
     /**
-     * Constructor
+     * Replies with which hosts hold which chunks of a file, for one page of chunks starting at firstChunkNumber.
+     * Each host is listed once with how fast it is known to serve and the ranges of chunks it holds in the page,
+     * the hosts expected to serve soonest first. A page that does not start at a chunk of the file is refused.
      */
-    public DirectoryServer() {
-        this.firstTable = new HashMap<>();
-        this.secondTable = new HashMap<>();
+    private ByteBuffer getQueryFileReplyMessage(String filename, int firstChunkNumber) {
+        ChunkIndex.FileEntry file = index.getFile(filename);
+        if (file == null) {
+            return new WireCodec.FrameWriter(Constant.TYPE_FILE_NOT_EXIST, 0).finish();
+        }
+
+        int chunkCount = file.getChunkCount();
+        if (firstChunkNumber < 1 || firstChunkNumber > chunkCount) {
+            return getErrorMessage(Constant.ERROR_INVALID_CHUNK_RANGES);
+        }
+        int lastChunkNumber = (int) Math.min(chunkCount, (long) firstChunkNumber + Constant.QUERY_FILE_PAGE_CHUNKS - 1);
+        int nextPageChunkNumber = lastChunkNumber < chunkCount ? lastChunkNumber + 1 : 0;
+
+        WireCodec.FrameWriter reply = new WireCodec.FrameWriter(Constant.TYPE_QUERY_FILE_REPLY, 256);
+        reply.putInt(file.getChunkSize()).putInt(chunkCount).putInt(nextPageChunkNumber);
+
+        // Hashes of the chunks of the page, so the downloader can check what peers send
+        byte[] chunkHashes = file.getChunkHashes();
+        int hashCount = Math.max(0, Math.min(lastChunkNumber, file.getHashedChunkCount()) - firstChunkNumber + 1);
+        reply.putInt(hashCount);
+        if (hashCount > 0) {
+            reply.putBytes(chunkHashes, (firstChunkNumber - 1) * Constant.CHUNK_HASH_SIZE,
+                    hashCount * Constant.CHUNK_HASH_SIZE);
+        }
+
+        int hostCountPosition = reply.position();
+        int hostCount = 0;
+        reply.putInt(0);
+
+        List<Integer> holderIds = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int hostId : file.getHolderIds()) {
+            if (index.isLive(hostId, now)) { // otherwise about to be removed by the reaper
+                holderIds.add(hostId);
+            }
+        }
+
+        for (int hostId : peerSelector.rank(holderIds, peerStats, file.getChunkSize())) {
+            ChunkRangeSet chunks = file.getChunksOfHost(hostId);
+            Host host = index.getHost(hostId);
+            if (chunks == null || host == null) { // removed since
+                continue;
+            }
+            int hostStart = reply.position();
+
+            reply.putString(host.getIPAddress()).putInt(host.getPortNumber());
+            putPeerStats(reply, hostId);
+
+            if (chunks.writeRanges(reply, firstChunkNumber, lastChunkNumber) > 0) {
+                hostCount++;
+            } else { // the host holds nothing in this page
+                reply.reset(hostStart);
+            }
+        }
+
+        reply.putIntAt(hostCountPosition, hostCount);
+        return reply.finish();
     }
 
-    public DirectoryServer(Socket acceptedClientSocket, HashMap<Chunk, List<Host>> firstTable,
-                           HashMap<Host, List<Chunk>> secondTable) {
-        this.acceptedClientSocket = acceptedClientSocket;
-        this.firstTable = firstTable;
-        this.secondTable = secondTable;
+    /**
+     * Writes the throughput of a host in bytes per second and its round-trip time in microseconds,
+     * 0 if not known
+     */
+    private void putPeerStats(WireCodec.FrameWriter reply, int hostId) {
+        reply.putInt((int) Math.min(Integer.MAX_VALUE, peerStats.getThroughput(hostId) * 1000L))
+                .putInt((int) (peerStats.getRoundTripTime(hostId) * 1000));
     }
 
-    private String getAckMessage() {
-        return Constant.MESSAGE_ACK + Constant.MESSAGE_DELIMITER;
+    private ByteBuffer getListReplyMessage() {
+        Set<String> filenames = new HashSet<>(index.getFilenames());
+
+        WireCodec.FrameWriter reply = new WireCodec.FrameWriter(Constant.TYPE_LIST_REPLY);
+        reply.putInt(filenames.size());
+        for (String filename : filenames) {
+            reply.putString(filename);
+        }
+
+        return reply.finish();
     }
 
-    private String getQueryReplyMessage(String filename, int chunkNumber) {
+    private ByteBuffer getShardMapReplyMessage() {
+        ShardMap currentShardMap = shardMap;
+        WireCodec.FrameWriter reply = new WireCodec.FrameWriter(Constant.TYPE_SHARD_MAP_REPLY);
+        if (currentShardMap == null) {
+            return reply.putInt(0).finish();
+        }
+        return currentShardMap.writeTo(reply).finish();
+    }
 
-        Chunk chunk = new Chunk(filename, chunkNumber);
-        String message = Constant.MESSAGE_REPLY + Constant.MESSAGE_DELIMITER;
+    /**
+     * Tells a client that the file belongs to another node, so that it fetches the shard map again
+     */
+    private ByteBuffer getWrongShardMessage(String filename) {
+        wrongShardReplies.increment();
+        return new WireCodec.FrameWriter(Constant.TYPE_WRONG_SHARD)
+                .putString(filename)
+                .finish();
+    }
 
-        List<Host> listOfHosts = firstTable.get(chunk);
+    private ByteBuffer getGoodbyeMessage() {
+        return new WireCodec.FrameWriter(Constant.TYPE_GOODBYE, 0).finish();
+    }
 
-        if (listOfHosts == null || listOfHosts.isEmpty()) {
+    private ByteBuffer getErrorMessage(String error) {
+        return new WireCodec.FrameWriter(Constant.TYPE_ERROR).putString(error).finish();
+    }
 
-            // Chunk not exists
-            return message + Constant.MESSAGE_CHUNK_NOT_EXIST + Constant.MESSAGE_DELIMITER;
+    /**
+     * Handles an inform that covers whole ranges of chunks of a file in one message,
+     * followed by the hashes of the file's chunks if the informing peer sent them.
+     * A chunk size out of bounds, or other than the one the file already has, is refused,
+     * and so are ranges that do not start at chunk 1 or later, that end before they start,
+     * or that go past the last chunk of the largest file kept.
+     * Hashes must be of every chunk of the file, so the ranges they come with must end at the last hashed chunk.
+     * The first hashes of a file are kept for as long as any host holds the file. Other hashes are refused,
+     * as are chunks past the last hashed chunk.
+     * @param message An inform whose filename and chunk size have been read, positioned at its ranges
+     * @return the reply to the inform
+     */
+    private ByteBuffer handleInformMsg(String filename, int chunkSize, WireCodec.Frame message,
+                                       String clientPublicIp, int clientPublicPort) throws IOException {
+        if (chunkSize <= 0 || chunkSize > Constant.MAX_CHUNK_SIZE) {
+            return getErrorMessage(Constant.ERROR_INVALID_CHUNK_SIZE);
+        }
+        ChunkIndex.FileEntry file = index.getFile(filename);
+        if (file != null && file.getChunkSize() != chunkSize) {
+            return getErrorMessage(Constant.ERROR_CHUNK_SIZE_MISMATCH);
+        }
 
-        } else {
+        // Everything is read and checked before the index changes, so a bad inform changes nothing
+        int rangeCount = message.getInt();
+        if (rangeCount < 0 || rangeCount > WireCodec.MAX_PAYLOAD_SIZE / (2 * Integer.BYTES)) {
+            return getErrorMessage(Constant.ERROR_INVALID_CHUNK_RANGES);
+        }
+        long maxChunkNumber = Math.min(Constant.MAX_CHUNKS_PER_FILE,
+                (Constant.MAX_FILE_SIZE + chunkSize - 1) / chunkSize);
+        int[] ranges = new int[2 * rangeCount];
+        int lastInformedChunk = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            ranges[i] = message.getInt();
+            ranges[i + 1] = message.getInt();
+            if (ranges[i] < 1 || ranges[i + 1] < ranges[i]) {
+                return getErrorMessage(Constant.ERROR_INVALID_CHUNK_RANGES);
+            }
+            if (ranges[i + 1] > maxChunkNumber) {
+                return getErrorMessage(Constant.ERROR_TOO_MANY_CHUNKS);
+            }
+            lastInformedChunk = Math.max(lastInformedChunk, ranges[i + 1]);
+        }
 
-            System.out.println("The chunk exists!");
+        byte[] chunkHashes = null;
+        int hashCount = message.getInt();
+        if (hashCount < 0 || hashCount > WireCodec.MAX_PAYLOAD_SIZE / Constant.CHUNK_HASH_SIZE) {
+            return getErrorMessage(Constant.ERROR_INVALID_CHUNK_RANGES);
+        }
+        if (hashCount > 0) {
+            chunkHashes = message.getBytes(hashCount * Constant.CHUNK_HASH_SIZE);
+        }
+        if (hashCount > 0 ? hashCount != lastInformedChunk
+                : file != null && file.getChunkHashes() != null && lastInformedChunk > file.getHashedChunkCount()) {
+            return getErrorMessage(Constant.ERROR_CHUNK_HASH_MISMATCH);
+        }
 
-            int randomNumber = (int) (Math.random() * listOfHosts.size());
+        Host host = new Host(clientPublicIp, clientPublicPort);
+        synchronized (index.getHostLock(host)) {
+            index.renewLease(host, System.currentTimeMillis() + Constant.HOST_LEASE_MS);
 
-            Host randomlySelectedHost = listOfHosts.get(randomNumber);
+            // Hashes go first, so that the chunks they come with are checked against whichever hashes are kept
+            if (chunkHashes != null && !index.setChunkHashes(filename, chunkSize, chunkHashes)) {
+                return getInformConflictMessage(filename, chunkSize);
+            }
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (!index.addChunks(filename, chunkSize, host, ranges[i], ranges[i + 1])) {
+                    // Another peer informed the file differently since it was checked above
+                    return getInformConflictMessage(filename, chunkSize);
+                }
+            }
 
-            return message + randomlySelectedHost.getIPAddress() + Constant.MESSAGE_DELIMITER
-                    + randomlySelectedHost.getPortNumber() + Constant.MESSAGE_DELIMITER;
+            journal.logInform(host, filename, chunkSize, ranges, chunkHashes);
         }
+        return getAckMessage();
+    }
 
+    /**
+     * @return the error for an inform the index refused because the file is known with another chunk size
+     * or other hashes
+     */
+    private ByteBuffer getInformConflictMessage(String filename, int chunkSize) {
+        ChunkIndex.FileEntry file = index.getFile(filename);
+        return getErrorMessage(file != null && file.getChunkSize() != chunkSize
+                ? Constant.ERROR_CHUNK_SIZE_MISMATCH : Constant.ERROR_CHUNK_HASH_MISMATCH);
     }
 
-    private String getListReplyMessage() {
-        String listReplyMessage = Constant.MESSAGE_REPLY + Constant.MESSAGE_DELIMITER;
+    /**
+     * Replies with the metrics of this server, followed by both tables of the index if asked for
+     */
+    private ByteBuffer getStatsReplyMessage(boolean includeTables) {
+        StringBuilder s = new StringBuilder(metrics.report());
+        if (includeTables) {
+            appendFirstTableContent(s);
+            appendSecondTableContent(s);
+        }
 
-        Set<Chunk> chunksSet = firstTable.keySet();
-        Set<String> filenames = chunksSet.stream()
-                .map(chunk -> chunk.getFilename())
-                .collect(Collectors.toSet());
+        byte[] text = s.toString().getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, WireCodec.MAX_PAYLOAD_SIZE);
+        return new WireCodec.FrameWriter(Constant.TYPE_STATS_REPLY, length).putBytes(text, 0, length).finish();
+    }
 
-        if (filenames.isEmpty()) {
-            listReplyMessage += Constant.MESSAGE_FILE_LIST_EMPTY + Constant.MESSAGE_DELIMITER;
-        } else {
-            listReplyMessage += filenames.size();
-            listReplyMessage += Constant.MESSAGE_DELIMITER;
-            for (String filename : filenames) {
-                listReplyMessage += filename;
-                listReplyMessage += Constant.MESSAGE_DELIMITER;
+    private void appendFirstTableContent(StringBuilder s) {
+        s.append(Constant.MESSAGE_DELIMITER).append("First table content:").append(Constant.MESSAGE_DELIMITER);
+        for (ChunkIndex.FileEntry file : index.getFiles()) {
+            for (Map.Entry<Integer, ChunkRangeSet> holding : file.getHoldings()) {
+                Host host = index.getHost(holding.getKey());
+                if (host == null) { // removed since
+                    continue;
+                }
+                s.append(file.getFilename()).append(" ").append(holding.getValue()).append(" is at: ")
+                        .append(host.getIPAddress()).append(":").append(host.getPortNumber())
+                        .append(Constant.MESSAGE_DELIMITER);
             }
         }
+    }
 
-        return listReplyMessage;
+    private void appendSecondTableContent(StringBuilder s) {
+        s.append(Constant.MESSAGE_DELIMITER).append("Second table content:").append(Constant.MESSAGE_DELIMITER);
+        for (int hostId : index.getHostIds()) {
+            Host host = index.getHost(hostId);
+            if (host == null) { // removed since
+                continue;
+            }
+            s.append(host.getIPAddress()).append(":").append(host.getPortNumber()).append(" has:")
+                    .append(Constant.MESSAGE_DELIMITER);
+            Set<String> filesOfHost = index.getFilesOfHost(hostId);
+            if (filesOfHost == null) {
+                continue;
+            }
+            for (String filename : filesOfHost) {
+                ChunkIndex.FileEntry file = index.getFile(filename);
+                ChunkRangeSet chunks = file == null ? null : file.getChunksOfHost(hostId);
+                if (chunks != null) {
+                    s.append(filename).append(" ").append(chunks).append(" ");
+                }
+            }
+            s.append(Constant.MESSAGE_DELIMITER);
+        }
     }
 
-    private String getGoodbyeMessage() {
-        return Constant.MESSAGE_GOODBYE + Constant.MESSAGE_DELIMITER;
+    private void handleExitMsg(String clientIpAddress, int clientPort) {
+        Host clientHost = new Host(clientIpAddress, clientPort);
+
+        synchronized (index.getHostLock(clientHost)) {
+            forgetHostId(index.removeHost(clientHost));
+            journal.logExit(clientHost);
+        }
     }
 
     /**
-     * Send TCP message to client
+     * Drops the statistics kept under the id of a removed host, before the id is given to another host
+     * @param hostId The id the host had, or -1 if it was not known
      */
-    private void send(Socket client, String messageToSend) {
-        try {
-            System.out.println("Server is sending client: " + messageToSend);
-            PrintWriter writer = new PrintWriter(client.getOutputStream(), true);
-            writer.println(messageToSend);
+    private void forgetHostId(int hostId) {
+        if (hostId >= 0) {
+            peerStats.forget(hostId);
+        }
+    }
 
-            if (messageToSend.contains(Constant.MESSAGE_GOODBYE)) {
-                System.out.println("Closing the client socket...");
-                client.close();
-                System.out.println("Client is closed: " + client.isClosed());
+    private void handleHeartbeatMsg(String clientIpAddress, int clientPort) {
+        Host clientHost = new Host(clientIpAddress, clientPort);
+        index.renewLease(clientHost, System.currentTimeMillis() + Constant.HOST_LEASE_MS);
+    }
+
+    /**
+     * Folds what a downloader observed of the hosts it downloaded from into their statistics.
+     * Hosts that are not known are ignored.
+     */
+    private void handlePeerReportMsg(WireCodec.Frame message) throws IOException {
+        int peerCount = message.getInt();
+        for (int i = 0; i < peerCount; i++) {
+            Integer hostId = index.findHostId(new Host(message.getString(), message.getInt()));
+            int bytesPerSecond = message.getInt();
+            int roundTripMicros = message.getInt();
+            if (hostId == null) {
+                continue;
+            }
+            if (bytesPerSecond > 0) {
+                peerStats.recordTransfer(hostId, bytesPerSecond, 1000);
+            }
+            if (roundTripMicros > 0) {
+                peerStats.recordRoundTrip(hostId, roundTripMicros / 1000.0);
             }
-        } catch (IOException ioe) {
-            System.err.println(ioe.getMessage());
         }
     }
 
-    private void handleInformMsg(String filename, int chunkNumber,
-                                 String clientPublicIp, int clientPublicPort) {
-        String IPAddress = clientPublicIp;
-        int portNumber = clientPublicPort;
+    /**
+     * @return whether this node keeps the file, always so if the directory is not split into shards
+     */
+    private boolean ownsFile(String filename) {
+        ShardMap currentShardMap = shardMap;
+        return currentShardMap == null || currentShardMap.getNode(filename).equals(self);
+    }
 
-        Host host = new Host(IPAddress, portNumber);
-        Chunk chunk = new Chunk(filename, chunkNumber);
+    /**
+     * Adopts the shard map a newly started node sent, then hands over the files that now belong to other nodes.
+     * Only taken from an address of a node in the new map.
+     */
+    private ByteBuffer handleShardMapUpdateMsg(Connection connection, WireCodec.Frame message) throws IOException {
+        ShardMap newShardMap = ShardMap.readFrom(message);
+        if (self == null || newShardMap == null || !newShardMap.contains(self)) {
+            return getErrorMessage(Constant.ERROR_NOT_IN_SHARD_MAP);
+        }
+        Set<String> newNodeAddresses = resolveAddresses(newShardMap);
+        if (!newNodeAddresses.contains(connection.clientIpAddress)) {
+            return getErrorMessage(Constant.ERROR_NOT_A_DIRECTORY_NODE);
+        }
 
-        //Add to the first table
-        List<Host> availableHosts = firstTable.get(chunk);
-        if (availableHosts == null) {
-            availableHosts = new ArrayList<>();
+        if (!newShardMap.hasSameNodes(shardMap)) {
+            System.out.println("Directory nodes are now " + newShardMap);
+            shardMapLock.writeLock().lock();
+            try {
+                nodeAddresses = newNodeAddresses;
+                shardMap = newShardMap;
+            } finally {
+                shardMapLock.writeLock().unlock();
+            }
+            shardHandoff.execute(this::handOffFiles);
         }
-        availableHosts.add(host);
-        firstTable.put(chunk, availableHosts);
+        return getAckMessage();
+    }
 
-        // Add to the second table
-        List<Chunk> chunksOfTheHost = secondTable.get(host);
-        if(chunksOfTheHost == null) {
-            chunksOfTheHost = new ArrayList<>();
+    /**
+     * Takes what another directory node hands over of a file this node now owns, laid out as the inform of
+     * the host that holds the chunks, after the host itself
+     */
+    private ByteBuffer handleHandoffMsg(Connection connection, WireCodec.Frame message) throws IOException {
+        if (!nodeAddresses.contains(connection.clientIpAddress)) {
+            return getErrorMessage(Constant.ERROR_NOT_A_DIRECTORY_NODE);
         }
-        chunksOfTheHost.add(chunk);
-        secondTable.put(host, chunksOfTheHost);
+
+        String hostIpAddress = message.getString();
+        int hostPort = message.getInt();
+        return handleInformIfOwned(message.getString(), message, hostIpAddress, hostPort);
     }
 
-    private void printFirstTableContent() {
-        HashMap<Chunk, List<Host>> table = firstTable;
-        String s = "";
-        for (Chunk chunk: table.keySet()) {
-            s += chunk.filename + " " + chunk.chunkNumber + "is at: \n";
-            for(Host host: table.get(chunk)) {
-                s += host.getIPAddress() + ":" + host.getPortNumber() + " ";
+    /**
+     * Handles an inform of a file this node keeps, or tells the sender which node keeps it.
+     * The shard map cannot change in between, see shardMapLock.
+     * @param message An inform whose filename has been read, positioned at its chunk size
+     */
+    private ByteBuffer handleInformIfOwned(String filename, WireCodec.Frame message,
+                                           String clientPublicIp, int clientPublicPort) throws IOException {
+        shardMapLock.readLock().lock();
+        try {
+            if (!ownsFile(filename)) {
+                return getWrongShardMessage(filename);
             }
-            s += "\n";
+            return handleInformMsg(filename, message.getInt(), message, clientPublicIp, clientPublicPort);
+        } finally {
+            shardMapLock.readLock().unlock();
         }
-        System.out.println("\nFirst table content:");
-        System.out.println(s);
     }
 
-    private void printSecondTableContent() {
-        HashMap<Host, List<Chunk>> table = secondTable;
-        String s = "";
-        for (Host host: table.keySet()) {
-            s += host.getIPAddress() + ":" + host.getPortNumber() + " has:\n";
-            for(Chunk chunk: table.get(host)) {
-                s += chunk.filename + " " + chunk.chunkNumber + " ";
+    /**
+     * @return the IP addresses of the nodes of a shard map, leaving out those that do not resolve
+     */
+    private static Set<String> resolveAddresses(ShardMap shardMap) {
+        Set<String> addresses = new HashSet<>();
+        for (Host node : shardMap.getNodes()) {
+            try {
+                addresses.add(InetAddress.getByName(node.getIPAddress()).getHostAddress());
+            } catch (UnknownHostException uhe) {
+                System.err.println("Directory node " + node.getIPAddress() + " does not resolve");
             }
-            s += "\n";
         }
-        System.out.println("Second table content:");
-        System.out.println(s);
+        return addresses;
     }
 
-    private void handleExitMsg(Socket client) {
-        String clientIpAddress = client.getInetAddress().toString();
-        int clientPort = Constant.P2P_SERVER_PORT;
-        Host clientHost = new Host(clientIpAddress, clientPort);
+    /**
+     * Sends every file this node no longer owns to the node that does, one HANDOFF per host holding the file,
+     * then forgets the file. A file whose new node cannot be reached or refuses it is kept, and the handoff
+     * is tried again a little later until it goes through.
+     * Runs on the handoff thread, after the new shard map is in place, so no more informs of these files are taken.
+     */
+    private void handOffFiles() {
+        ShardMap currentShardMap = shardMap;
+        Map<Host, List<ChunkIndex.FileEntry>> filesByNode = new HashMap<>();
+        for (ChunkIndex.FileEntry file : index.getFiles()) {
+            Host node = currentShardMap.getNode(file.getFilename());
+            if (!node.equals(self)) {
+                filesByNode.computeIfAbsent(node, key -> new ArrayList<>()).add(file);
+            }
+        }
 
-        List<Chunk> clientChunks = secondTable.get(clientHost);
+        for (Map.Entry<Host, List<ChunkIndex.FileEntry>> filesOfNode : filesByNode.entrySet()) {
+            Host node = filesOfNode.getKey();
+            int fileCount = 0;
+            try (Socket socket = new Socket(node.getIPAddress(), node.getPortNumber())) {
+                DataOutputStream toNode = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream fromNode = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                for (ChunkIndex.FileEntry file : filesOfNode.getValue()) {
+                    handOffFile(file, toNode, fromNode);
+                    index.removeFile(file.getFilename());
+                    journal.logDropFile(file.getFilename());
+                    filesHandedOff.increment();
+                    fileCount++;
+                }
+            } catch (IOException ioe) {
+                System.err.println("Failed to hand files over to directory node " + node.getIPAddress() + ":"
+                        + node.getPortNumber() + ", trying again in " + Constant.SHARD_HANDOFF_RETRY_MS + " ms: "
+                        + ioe.getMessage());
+                scheduleHandoffRetry();
+            }
+            System.out.println("Handed " + fileCount + " files over to directory node " + node.getIPAddress()
+                    + ":" + node.getPortNumber());
+        }
+    }
 
-        // Remove client information from the first table
-        if (clientChunks != null) {
-            for (Chunk chunk : clientChunks) {
-                List<Host> hostsForChunk = firstTable.get(chunk);
+    /**
+     * Runs handOffFiles again later, unless a retry is already waiting, which then covers the failed files as well
+     */
+    private void scheduleHandoffRetry() {
+        if (isHandoffRetryScheduled.compareAndSet(false, true)) {
+            shardHandoff.schedule(() -> {
+                isHandoffRetryScheduled.set(false);
+                handOffFiles();
+            }, Constant.SHARD_HANDOFF_RETRY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
 
-                if (hostsForChunk == null) {
-                    continue;
+    /**
+     * Sends what every host holds of a file as the inform that host would send, and waits until the other node
+     * has taken each of them. The hashes go once, with a host holding the last hashed chunk as they must.
+     */
+    private void handOffFile(ChunkIndex.FileEntry file, DataOutputStream toNode, DataInputStream fromNode)
+            throws IOException {
+        byte[] chunkHashes = file.getChunkHashes();
+        int hashedChunkCount = file.getHashedChunkCount();
+        for (Map.Entry<Integer, ChunkRangeSet> holding : file.getHoldings()) {
+            Host host = index.getHost(holding.getKey());
+            if (host == null) { // removed since
+                continue;
+            }
+            WireCodec.FrameWriter handoff = new WireCodec.FrameWriter(Constant.TYPE_HANDOFF)
+                    .putString(host.getIPAddress())
+                    .putInt(host.getPortNumber())
+                    .putString(file.getFilename())
+                    .putInt(file.getChunkSize());
+            holding.getValue().writeRanges(handoff, 1, Integer.MAX_VALUE);
+            if (chunkHashes == null || !holding.getValue().contains(hashedChunkCount)) {
+                handoff.putInt(0);
+            } else {
+                handoff.putInt(chunkHashes.length / Constant.CHUNK_HASH_SIZE).putBytes(chunkHashes);
+                chunkHashes = null; // once per file is enough
+            }
+            handoff.writeTo(toNode);
+            toNode.flush();
+
+            WireCodec.Frame reply = WireCodec.readFrame(fromNode);
+            if (reply.getType() != Constant.TYPE_ACK) {
+                throw new IOException("Directory node refused the handoff of " + file.getFilename());
+            }
+        }
+    }
+
+    /**
+     * Sends the shard map this node was started with to every other node, which then hand over the files
+     * that belong to this node, and hands over whatever this node kept that now belongs elsewhere.
+     * Nodes that cannot be reached are skipped; they learn of this node if they are restarted with it.
+     */
+    private void announceShardMap() {
+        ShardMap currentShardMap = shardMap;
+        ByteBuffer update = currentShardMap.writeTo(new WireCodec.FrameWriter(Constant.TYPE_SHARD_MAP_UPDATE)).finish();
+
+        for (Host node : currentShardMap.getNodes()) {
+            if (node.equals(self)) {
+                continue;
+            }
+            try (Socket socket = new Socket(node.getIPAddress(), node.getPortNumber())) {
+                socket.getOutputStream().write(update.array(), 0, update.limit());
+                WireCodec.Frame reply = WireCodec.readFrame(new DataInputStream(socket.getInputStream()));
+                if (reply.getType() != Constant.TYPE_ACK) {
+                    System.err.println("Directory node " + node.getIPAddress() + ":" + node.getPortNumber()
+                            + " refused the shard map: " + reply.getString());
                 }
-                hostsForChunk.remove(clientHost);
+            } catch (IOException ioe) {
+                System.err.println("Failed to reach directory node " + node.getIPAddress() + ":"
+                        + node.getPortNumber() + ": " + ioe.getMessage());
+            }
+        }
+        handOffFiles();
+    }
 
-                if (hostsForChunk.isEmpty()) {
-                    firstTable.remove(chunk);
+    /**
+     * Splits the directory over the given nodes, this being the one listening on port at a local address
+     */
+    void setShardMap(ShardMap shardMap, int port) throws IOException {
+        for (Host node : shardMap.getNodes()) {
+            if (node.getPortNumber() == port && isLocalAddress(node.getIPAddress())) {
+                this.self = node;
+                this.nodeAddresses = resolveAddresses(shardMap);
+                this.shardMap = shardMap;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("None of the directory nodes " + shardMap + " is this one on port " + port);
+    }
+
+    private static boolean isLocalAddress(String host) throws IOException {
+        InetAddress address = InetAddress.getByName(host);
+        return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                || NetworkInterface.getByInetAddress(address) != null;
+    }
+
+    /**
+     * Removes every host whose lease ran out, such as peers that crashed or lost their connection
+     * without sending EXIT. Runs on the reaper thread.
+     */
+    private void reapExpiredHosts() {
+        // The hosts QUERY pointed downloaders at a while ago are likely done with them
+        peerStats.decayLoads();
+
+        long now = System.currentTimeMillis();
+        int removedCount = 0;
+        for (Host host : index.getExpiredHosts(now)) {
+            // The host may have renewed its lease since it was found expired, which removeHostIfExpired checks
+            synchronized (index.getHostLock(host)) {
+                int hostId = index.removeHostIfExpired(host, now);
+                if (hostId >= 0) {
+                    forgetHostId(hostId);
+                    journal.logExit(host);
+                    removedCount++;
                 }
-                // Remove client information from the second table
-                secondTable.remove(clientHost);
             }
         }
+        if (removedCount > 0) {
+            System.out.println("Removed " + removedCount + " hosts whose lease expired");
+        }
+    }
+
+    /**
+     * Gives every host known at startup a full lease, so that live peers have time to send a heartbeat
+     * before the reaper removes them
+     */
+    private void startReaper() {
+        long expiryMillis = System.currentTimeMillis() + Constant.HOST_LEASE_MS;
+        for (int hostId : index.getHostIds()) {
+            index.renewLease(index.getHost(hostId), expiryMillis);
+        }
+
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "directory-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reapExpiredHosts, Constant.REAPER_INTERVAL_MS,
+                Constant.REAPER_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
-    private String handleClientMsg(Socket client, String[] parsedClientMsg) {
+    private ByteBuffer handleClientMsg(Connection connection, WireCodec.Frame message) throws IOException {
+
+        long startTime = System.nanoTime();
+        byte type = message.getType();
+        LongAdder requestCounter = type >= 0 ? requestCounters[type] : null;
+        (requestCounter != null ? requestCounter : otherRequests).increment();
+        ByteBuffer returnMessage;
 
-        String type = parsedClientMsg[0];
-        System.out.println("Client message has type: " + type);
-        String returnMessage;
+        // Changes that cannot be logged would be lost on a restart, so none are taken once the journal fails
+        if ((type == Constant.TYPE_INFORM || type == Constant.TYPE_EXIT || type == Constant.TYPE_HANDOFF)
+                && !journal.isWritable()) {
+            requestLatency.recordSince(startTime);
+            return getErrorMessage(Constant.ERROR_JOURNAL_FAILED);
+        }
 
         switch(type) {
-            case Constant.COMMAND_INFORM:
+            case Constant.TYPE_HELLO:
 
-                String filename = parsedClientMsg[1];
-                int chunkNumber = Integer.parseInt(parsedClientMsg[2]);
-                String clientPublicIp = client.getInetAddress().toString();
-                int clientPublicPort = Constant.P2P_SERVER_PORT;
-                handleInformMsg(filename, chunkNumber, clientPublicIp, clientPublicPort);
+                // Everything this client informs from now on is served from this port
+                connection.clientPort = message.getInt();
                 returnMessage = getAckMessage();
                 break;
 
-            case Constant.COMMAND_QUERY:
+            case Constant.TYPE_INFORM:
+
+                returnMessage = handleInformIfOwned(message.getString(), message,
+                        connection.clientIpAddress, connection.clientPort);
+                break;
+
+            case Constant.TYPE_QUERY:
 
-                String filename2 = parsedClientMsg[1];
-                int chunkNumber2 = Integer.parseInt(parsedClientMsg[2]);
+                String filename2 = message.getString();
+                if (!ownsFile(filename2)) {
+                    returnMessage = getWrongShardMessage(filename2);
+                    break;
+                }
+                int chunkNumber2 = message.getInt();
                 returnMessage = getQueryReplyMessage(filename2, chunkNumber2);
                 break;
 
-            case Constant.COMMAND_LIST:
+            case Constant.TYPE_QUERY_FILE:
+
+                String filename3 = message.getString();
+                if (!ownsFile(filename3)) {
+                    returnMessage = getWrongShardMessage(filename3);
+                    break;
+                }
+                returnMessage = getQueryFileReplyMessage(filename3, message.getInt());
+                break;
+
+            case Constant.TYPE_SHARD_MAP:
+
+                returnMessage = getShardMapReplyMessage();
+                break;
+
+            case Constant.TYPE_SHARD_MAP_UPDATE:
+
+                returnMessage = handleShardMapUpdateMsg(connection, message);
+                break;
+
+            case Constant.TYPE_HANDOFF:
+
+                returnMessage = handleHandoffMsg(connection, message);
+                break;
+
+            case Constant.TYPE_LIST:
 
                 returnMessage = getListReplyMessage();
                 break;
 
-            case Constant.COMMAND_EXIT:
+            case Constant.TYPE_HEARTBEAT:
+
+                handleHeartbeatMsg(connection.clientIpAddress, connection.clientPort);
+                returnMessage = getAckMessage();
+                break;
+
+            case Constant.TYPE_PEER_REPORT:
+
+                handlePeerReportMsg(message);
+                returnMessage = getAckMessage();
+                break;
 
-                handleExitMsg(client);
+            case Constant.TYPE_STATS:
+
+                returnMessage = getStatsReplyMessage(message.getInt() != 0);
+                break;
+
+            case Constant.TYPE_EXIT:
+
+                handleExitMsg(connection.clientIpAddress, connection.clientPort);
                 returnMessage = getGoodbyeMessage();
                 break;
 
             default:
-                returnMessage = "This is not a supported operation.";
+                returnMessage = getErrorMessage(Constant.ERROR_UNSUPPORTED_OPERATION);
         }
 
-        printFirstTableContent();
-        printSecondTableContent();
-
+        requestLatency.recordSince(startTime);
         return returnMessage;
 
     }
 
-    private String getMsgFromClient(Socket client) {
-        String messageFromClient = "";
-
-        try {
-            BufferedReader scanner = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            String nextLine = scanner.readLine();
-
-            while (nextLine != null) {
-                System.out.println("Current line read: " + nextLine);
-                messageFromClient += nextLine;
-                messageFromClient += Constant.MESSAGE_DELIMITER;
-
-                if (scanner.ready()) {
-                    nextLine = scanner.readLine();
-                } else {
-                    nextLine = null;
-                }
-            }
-        } catch (Exception e) {
-            System.err.println(e.getMessage());
-        }
-        return messageFromClient;
+    /**
+     * @return the metrics reported to the STATS command, for tools that run the server in their own process
+     */
+    Metrics getMetrics() {
+        return metrics;
     }
 
-    private void handleClientSocket(Socket client) {
-        String messageFromClient = getMsgFromClient(client);
+    /**
+     * Accepts clients and hands each of them to one of a fixed set of I/O threads. Every I/O thread
+     * serves all of its clients with one selector, so idle clients cost no thread.
+     */
+    void startWelcomeSocket(int port) {
+        try {
+            journal.recover();
+            new Thread(journal, "directory-journal").start();
+            startReaper();
 
-        if (!messageFromClient.isEmpty()) {
-            System.out.println("Parsing client message...");
-            String[] parsedClientMsg = parse(messageFromClient);
-            
-            System.out.println("Preparing directory server reply...");
-            String reply = handleClientMsg(client, parsedClientMsg);
+            ServerSocketChannel serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(port), Constant.DIR_SERVER_BACKLOG);
 
-            System.out.println("Sending directory server reply to" + clientIp(client));
-            send(client, reply);
-        }
-    }
+            if (shardMap != null) {
+                System.out.println("Directory node " + self.getIPAddress() + ":" + self.getPortNumber()
+                        + " of " + shardMap);
+                shardHandoff.execute(this::announceShardMap);
+            }
 
-    private void startWelcomeSocket() {
-        try {
-            ServerSocket serverSocket = new ServerSocket(Constant.DIR_SERVER_PORT);
-            System.out.println("The directory server is up and running...");
+            IoWorker[] ioWorkers = new IoWorker[Constant.DIR_SERVER_IO_THREADS];
+            for (int i = 0; i < ioWorkers.length; i++) {
+                ioWorkers[i] = new IoWorker();
+                new Thread(ioWorkers[i], "directory-io-" + i).start();
+            }
+            System.out.println("The directory server is up and running with " + ioWorkers.length + " I/O threads...");
 
+            int nextIoWorker = 0;
             while(true) {
-                System.out.println("Waiting for new client connection...");
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New connection request from " + clientIp(clientSocket));
+                SocketChannel clientSocket = serverSocket.accept();
+                System.out.println("New connection request from " + clientSocket.getRemoteAddress());
 
-                DirectoryServer newServer = new DirectoryServer(clientSocket, firstTable, secondTable);
-                new Thread(newServer).start();
+                ioWorkers[nextIoWorker].register(clientSocket);
+                nextIoWorker = (nextIoWorker + 1) % ioWorkers.length;
             }
         } catch (IOException ioe) {
             System.err.println(ioe.getMessage());
         }
     }
 
-    private String clientIp(Socket socket) {
-        return socket.getInetAddress().toString() + ":" + socket.getPort();
-    }
-
-    @Override
-    public void run() {
-        System.out.println("New thread created to entertain the client" + clientIp(acceptedClientSocket) + "\n");
-        while (!acceptedClientSocket.isClosed()) {
-            handleClientSocket(acceptedClientSocket);
+    public static void main(String[] args) {
+        String stateDirectory = Constant.DIR_SERVER_STATE_DIRECTORY;
+        if (args.length >= 1) {
+            stateDirectory = args[0];
+        }
+        String peerSelectorName = Constant.DEFAULT_PEER_SELECTOR;
+        if (args.length >= 2) {
+            peerSelectorName = args[1];
+        }
+        int port = Constant.DIR_SERVER_PORT;
+        if (args.length >= 3) {
+            port = Integer.parseInt(args[2]);
         }
-        System.out.println(clientIp(acceptedClientSocket) + " exits...\n");
-    }
 
-    private String[] parse(String message) {
-        return message.split(Constant.MESSAGE_DELIMITER);
+        DirectoryServer directoryServer = new DirectoryServer(stateDirectory, PeerSelector.forName(peerSelectorName));
+        if (args.length >= 4) {
+            // Every directory node, this one included, as host:port separated by commas
+            try {
+                directoryServer.setShardMap(ShardMap.parse(args[3]), port);
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                return;
+            }
+        }
+        directoryServer.startWelcomeSocket(port);
     }
 
-    public static void main(String[] args) {
-        DirectoryServer directoryServer = new DirectoryServer();
-        directoryServer.startWelcomeSocket();
-    }
+    /**
+     * Serves the clients registered with it from a single thread
+     */
+    private class IoWorker implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newClients = new ConcurrentLinkedQueue<>();
 
-    private class Chunk {
-        private String filename;
+        // Shared by all clients of this thread, since a read is always consumed before the next one.
+        // Kept on the heap so that frames can be decoded straight out of it.
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(Constant.DIR_SERVER_READ_BUFFER_SIZE);
 
-        private int chunkNumber;
+        public IoWorker() throws IOException {
+            this.selector = Selector.open();
+        }
 
-        public Chunk(String filename, int chunkNumber) {
-            this.filename = filename;
-            this.chunkNumber = chunkNumber;
+        /**
+         * Called from the accepting thread
+         */
+        public void register(SocketChannel client) {
+            newClients.add(client);
+            selector.wakeup();
         }
 
-        public String getFilename() {
-            return filename;
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerNewClients();
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        handleKey(key);
+                    }
+                } catch (IOException ioe) {
+                    System.err.println(ioe.getMessage());
+                }
+            }
         }
 
-        public int getChunkNumber() {
-            return chunkNumber;
+        private void registerNewClients() {
+            SocketChannel client;
+            while ((client = newClients.poll()) != null) {
+                try {
+                    client.configureBlocking(false);
+                    String clientIpAddress = ((InetSocketAddress) client.getRemoteAddress()).getAddress().getHostAddress();
+                    client.register(selector, SelectionKey.OP_READ, new Connection(clientIpAddress));
+                    activeConnections.incrementAndGet();
+                } catch (IOException ioe) {
+                    System.err.println(ioe.getMessage());
+                    closeQuietly(client);
+                }
+            }
         }
 
-        @Override
-        public boolean equals(Object other) {
-            return other == this
-                    || (other instanceof Chunk
-                    && this.chunkNumber == ((Chunk) other).chunkNumber
-                    && this.filename.equals(((Chunk) other).filename));
+        private void handleKey(SelectionKey key) {
+            SocketChannel client = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+
+            try {
+                if (key.isReadable()) {
+                    readBuffer.clear();
+                    int bytesRead = client.read(readBuffer);
+                    if (bytesRead == -1) {
+                        System.out.println(connection.clientIpAddress + " exits...");
+                        closeClient(key, client);
+                        return;
+                    }
+                    bytesReceived.add(bytesRead);
+                    readBuffer.flip();
+
+                    WireCodec.Frame message;
+                    while ((message = connection.nextMessage(readBuffer)) != null) {
+                        ByteBuffer reply = handleClientMsg(connection, message);
+                        bytesSent.add(reply.remaining());
+                        connection.queueReply(message.getType(), reply);
+                    }
+                }
 
+                if (connection.flush(client)) {
+                    if (connection.isClosing) {
+                        closeClient(key, client);
+                        return;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                } else { // the client is slow to read, so wait until the socket can take more
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Dropping client " + connection.clientIpAddress + ": " + e);
+                closeClient(key, client);
+            }
         }
 
-        @Override
-        public int hashCode() {
-            return this.filename.hashCode() + this.chunkNumber * 17;
+        private void closeClient(SelectionKey key, SocketChannel client) {
+            key.cancel();
+            closeQuietly(client);
+            activeConnections.decrementAndGet();
+        }
+
+        private void closeQuietly(SocketChannel client) {
+            try {
+                client.close();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
         }
     }
 
-    private class Host {
-        private String IPAddress;
+    /**
+     * State of one client connection: the bytes of a frame that has only partly arrived,
+     * and the replies not yet written.
+     */
+    private class Connection {
+        private final String clientIpAddress;
 
-        private int portNumber;
+        // The port the client's P2P server listens on, the usual one unless the client said otherwise with HELLO
+        private int clientPort = Constant.P2P_SERVER_PORT;
 
-        public Host(String IPAddress, int portNumber) {
-            this.IPAddress = IPAddress;
-            this.portNumber = portNumber;
-        }
+        // Bytes left over from earlier reads, or null when the last read ended on a frame boundary
+        private ByteBuffer partialFrame;
 
-        public String getIPAddress() {
-            return IPAddress;
+        private final Deque<ByteBuffer> pendingReplies = new ArrayDeque<>();
+        private boolean isClosing = false;
+
+        public Connection(String clientIpAddress) {
+            this.clientIpAddress = clientIpAddress;
         }
 
-        public int getPortNumber() {
-            return portNumber;
+        /**
+         * Takes the next whole frame, either straight from the read buffer or once the bytes left over from
+         * earlier reads have been completed by it. Whatever is left of an incomplete frame is kept for later.
+         * @return the frame, or null if the buffer ran out first
+         */
+        public WireCodec.Frame nextMessage(ByteBuffer buffer) throws IOException {
+            if (partialFrame == null) {
+                WireCodec.Frame frame = WireCodec.decodeFrame(buffer);
+                if (frame == null && buffer.hasRemaining()) {
+                    partialFrame = ByteBuffer.allocate(Math.max(buffer.remaining(), WireCodec.HEADER_SIZE) * 2);
+                    partialFrame.put(buffer).flip();
+                }
+                return frame;
+            }
+
+            partialFrame.compact();
+            if (partialFrame.remaining() < buffer.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(partialFrame.position() + buffer.remaining());
+                partialFrame.flip();
+                grown.put(partialFrame);
+                partialFrame = grown;
+            }
+            partialFrame.put(buffer).flip();
+
+            WireCodec.Frame frame = WireCodec.decodeFrame(partialFrame);
+            if (frame != null && !partialFrame.hasRemaining()) {
+                // The frame still refers to the old buffer, so drop it rather than reuse it
+                partialFrame = null;
+            } else if (frame != null) {
+                // Move what follows the frame into a new buffer, for the same reason
+                ByteBuffer rest = ByteBuffer.allocate(partialFrame.remaining() * 2);
+                rest.put(partialFrame).flip();
+                partialFrame = rest;
+            }
+            return frame;
         }
 
-        @Override
-        public boolean equals(Object other) {
-            return other == this
-                    || (other instanceof Host
-                    && this.portNumber == ((Host) other).portNumber
-                    && this.IPAddress.equals(((Host) other).IPAddress));
+        public void queueReply(byte requestType, ByteBuffer reply) {
+            pendingReplies.add(reply);
+            if (requestType == Constant.TYPE_EXIT) {
+                isClosing = true;
+            }
         }
 
-        @Override
-        public int hashCode() {
-            return this.IPAddress.hashCode() + this.portNumber * 17;
+        /**
+         * Writes as many queued replies as the socket takes without blocking
+         * @return whether every queued reply has been written
+         */
+        public boolean flush(SocketChannel client) throws IOException {
+            while (!pendingReplies.isEmpty()) {
+                ByteBuffer reply = pendingReplies.peek();
+                client.write(reply);
+                if (reply.hasRemaining()) {
+                    return false;
+                }
+                pendingReplies.poll();
+            }
+            return true;
         }
     }
 
@@ -0,0 +1,211 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Records which chunks of a download are already on disk, so that an interrupted download can resume.
+ * While a file is being downloaded its data lives in a ".part" file, and this manifest is kept next to it
+ * in a ".chunks" file. Once every chunk is held, the part file is renamed to the file's real name.
+ */
+public class DownloadManifest {
+
+    private static final int MAGIC = 0x43484b53; // "CHKS"
+
+    private final String directory;
+    private final String fileName;
+    private final int chunkSize;
+    private final int chunkCount;
+
+    // Bit n - 1 is set once chunk n is on disk
+    private final BitSet heldChunks;
+
+    // Whether the part file was kept although its manifest could not be read, so that its chunks must be
+    // checked against their hashes before any of them is taken as held
+    private boolean isUnverified = false;
+
+    private DownloadManifest(String directory, String fileName, int chunkSize, int chunkCount, BitSet heldChunks) {
+        this.directory = directory;
+        this.fileName = fileName;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.heldChunks = heldChunks;
+    }
+
+    /**
+     * @param directory The directory the file is downloaded to, ending with a separator
+     */
+    public static Path getPartPath(String directory, String fileName) {
+        return Paths.get(directory + fileName + Constant.PART_FILE_SUFFIX);
+    }
+
+    public static Path getManifestPath(String directory, String fileName) {
+        return Paths.get(directory + fileName + Constant.MANIFEST_FILE_SUFFIX);
+    }
+
+    /**
+     * Loads the manifest left by an earlier attempt to download the file, or starts an empty one.
+     * A manifest written for another chunk size or chunk count is of no use, so it is discarded
+     * together with its part file. A part file whose manifest cannot be read is kept, and the empty manifest
+     * is marked unverified so that the caller checks the chunks of the part file.
+     */
+    public static DownloadManifest open(String directory, String fileName, int chunkSize, int chunkCount)
+            throws IOException {
+        DownloadManifest manifest;
+        boolean isUnreadable = false;
+        try {
+            manifest = readManifest(directory, fileName);
+        } catch (IOException ioe) {
+            System.out.println("Manifest of " + fileName + " is unreadable, checking its part file instead: "
+                    + ioe.getMessage());
+            manifest = null;
+            isUnreadable = true;
+        }
+
+        boolean hasPartFile = Files.exists(getPartPath(directory, fileName));
+        if (isUnreadable && hasPartFile) {
+            manifest = new DownloadManifest(directory, fileName, chunkSize, chunkCount, new BitSet(chunkCount));
+            manifest.isUnverified = true;
+        } else if (manifest == null || manifest.chunkSize != chunkSize || manifest.chunkCount != chunkCount
+                || !hasPartFile) {
+            Files.deleteIfExists(getPartPath(directory, fileName));
+            manifest = new DownloadManifest(directory, fileName, chunkSize, chunkCount, new BitSet(chunkCount));
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Reads the manifest of a file being downloaded, as last saved
+     * @return the manifest, or null if there is none or it cannot be read
+     */
+    public static DownloadManifest read(String directory, String fileName) {
+        try {
+            return readManifest(directory, fileName);
+        } catch (IOException ioe) {
+            System.out.println("Ignoring unreadable manifest of " + fileName + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the manifest, or null if there is none
+     * @throws IOException if the manifest is there but damaged or of an unknown format
+     */
+    private static DownloadManifest readManifest(String directory, String fileName) throws IOException {
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(getManifestPath(directory, fileName)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("unknown manifest format");
+            }
+            int chunkSize = input.readInt();
+            int chunkCount = input.readInt();
+            if (chunkSize <= 0 || chunkCount < 0) {
+                throw new IOException("manifest claims " + chunkCount + " chunks of " + chunkSize + " bytes");
+            }
+            byte[] bitmap = new byte[(chunkCount + 7) / 8];
+            input.readFully(bitmap);
+            return new DownloadManifest(directory, fileName, chunkSize, chunkCount, BitSet.valueOf(bitmap));
+        } catch (NoSuchFileException nsfe) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the chunks of the part file have to be checked against their hashes, see open()
+     */
+    public boolean isUnverified() {
+        return isUnverified;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public boolean isHeld(int chunkNumber) {
+        return heldChunks.get(chunkNumber - 1);
+    }
+
+    /**
+     * Marks a chunk as held. The mark only reaches the disk on the next save().
+     */
+    public void markHeld(int chunkNumber) {
+        heldChunks.set(chunkNumber - 1);
+    }
+
+    public int getHeldCount() {
+        return heldChunks.cardinality();
+    }
+
+    public boolean isComplete() {
+        return heldChunks.cardinality() == chunkCount;
+    }
+
+    /**
+     * @return the held chunks, as ranges of consecutive chunk numbers
+     */
+    public ChunkRangeSet getHeldChunks() {
+        ChunkRangeSet chunks = new ChunkRangeSet();
+        for (int i = heldChunks.nextSetBit(0); i >= 0; ) {
+            int end = heldChunks.nextClearBit(i);
+            chunks.add(i + 1, end);
+            i = heldChunks.nextSetBit(end);
+        }
+        return chunks;
+    }
+
+    /**
+     * Writes the manifest to disk. The chunks it marks must already have been written to the part file.
+     * The manifest is written and forced to a temporary file that then replaces the old one,
+     * so a crash leaves either the old or the new manifest whole.
+     */
+    public void save() throws IOException {
+        Path manifestPath = getManifestPath(directory, fileName);
+        Path tempPath = Paths.get(manifestPath + ".tmp");
+
+        byte[] bitmap = Arrays.copyOf(heldChunks.toByteArray(), (chunkCount + 7) / 8);
+        ByteBuffer contents = ByteBuffer.allocate(3 * Integer.BYTES + bitmap.length);
+        contents.putInt(MAGIC).putInt(chunkSize).putInt(chunkCount).put(bitmap).flip();
+
+        try (FileChannel file = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (contents.hasRemaining()) {
+                file.write(contents);
+            }
+            file.force(true);
+        }
+
+        Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+    }
+
+    /**
+     * Forces the rename of the manifest to disk where the platform allows opening a directory
+     */
+    private void forceDirectory() {
+        try (FileChannel directoryChannel = FileChannel.open(Paths.get(directory), StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException ioe) {
+            // Some platforms cannot open a directory. The rename then reaches the disk with the next sync.
+        }
+    }
+
+    /**
+     * Gives the part file the real name of the file and removes the manifest
+     */
+    public void promote() throws IOException {
+        Files.move(getPartPath(directory, fileName), Paths.get(directory + fileName), StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(getManifestPath(directory, fileName));
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which P2P servers hold which chunks of a file, as returned by the directory server for a QUERYFILE.
+ * A downloader plans the whole download from this map without asking the directory server per chunk.
+ */
+public class FileChunkMap {
+
+    private final int chunkSize;
+    private final int chunkCount;
+
+    private final List<String> peerIPs = new ArrayList<>();
+    private final List<Integer> peerPorts = new ArrayList<>();
+
+    // How fast each peer serves, by peer index, starting from what the directory server knows of it
+    private final PeerStats peerStats = new PeerStats();
+
+    // Content hashes of chunk 1 onwards, or null if the directory server has none
+    private byte[] chunkHashes;
+
+    // Indexes into the peer lists of the holders of each chunk, where chunk n is at index n - 1
+    private final List<List<Integer>> holdersOfChunks;
+
+    public FileChunkMap(int chunkSize, int chunkCount) {
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.holdersOfChunks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            holdersOfChunks.add(new ArrayList<>(1));
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Reads the rest of a page of a QUERYFILE reply, after its chunk size, chunk count and next page:
+     * the hashes of the chunks of the page, then each peer with the ranges of chunks it holds in the page
+     */
+    public void addPage(int firstChunk, WireCodec.Frame reply) throws IOException {
+        int hashCount = reply.getInt();
+        if (hashCount > 0) {
+            addHashes(firstChunk, hashCount, reply.getBytes(hashCount * Constant.CHUNK_HASH_SIZE));
+        }
+
+        int hostCount = reply.getInt();
+        for (int i = 0; i < hostCount; i++) {
+            String peerIP = reply.getString();
+            int peerPort = reply.getInt();
+            int peer = addPeer(peerIP, peerPort, reply.getInt(), reply.getInt());
+            int rangeCount = reply.getInt();
+            for (int j = 0; j < rangeCount; j++) {
+                addHolder(peer, reply.getInt(), reply.getInt());
+            }
+        }
+    }
+
+    /**
+     * Records the hashes of hashCount chunks starting at firstChunk
+     */
+    public void addHashes(int firstChunk, int hashCount, byte[] hashes) {
+        if (chunkHashes == null) {
+            chunkHashes = new byte[chunkCount * Constant.CHUNK_HASH_SIZE];
+        }
+        hashCount = Math.min(hashCount, chunkCount - firstChunk + 1);
+        System.arraycopy(hashes, 0, chunkHashes, (firstChunk - 1) * Constant.CHUNK_HASH_SIZE,
+                Math.max(0, hashCount) * Constant.CHUNK_HASH_SIZE);
+    }
+
+    public boolean hasHashes() {
+        return chunkHashes != null;
+    }
+
+    /**
+     * @return whether a received chunk matches its hash. Chunks of a file without hashes cannot be checked.
+     */
+    public boolean isValidChunk(int chunkNumber, byte[] chunk) {
+        return chunkHashes == null || ChunkHasher.matches(chunk, chunkHashes, chunkNumber);
+    }
+
+    /**
+     * Adds a peer, or finds it if it was already added for another page of chunks
+     * @param bytesPerSecond The throughput the directory server knows of the peer, or 0
+     * @param roundTripMicros The round-trip time the directory server knows of the peer, or 0
+     * @return the index of the peer
+     */
+    public int addPeer(String peerIP, int peerPort, int bytesPerSecond, int roundTripMicros) {
+        int peer = getPeer(peerIP, peerPort);
+        if (bytesPerSecond > 0 && peerStats.getThroughput(peer) == 0) {
+            peerStats.recordTransfer(peer, bytesPerSecond, 1000);
+        }
+        if (roundTripMicros > 0 && peerStats.getRoundTripTime(peer) == 0) {
+            peerStats.recordRoundTrip(peer, roundTripMicros / 1000.0);
+        }
+        return peer;
+    }
+
+    /**
+     * Records that a peer holds the chunks from firstChunk to lastChunk inclusive
+     */
+    public void addHolder(int peer, int firstChunk, int lastChunk) {
+        for (int chunkNumber = Math.max(firstChunk, 1); chunkNumber <= Math.min(lastChunk, chunkCount); chunkNumber++) {
+            holdersOfChunks.get(chunkNumber - 1).add(peer);
+        }
+    }
+
+    /**
+     * @return whether every chunk of the file is held by at least one peer
+     */
+    public boolean isComplete() {
+        for (List<Integer> holders : holdersOfChunks) {
+            if (holders.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the peer indexes of the holders of a chunk, to be looked up with getPeerIP and getPeerPort
+     */
+    public List<Integer> getHolders(int chunkNumber) {
+        return holdersOfChunks.get(chunkNumber - 1);
+    }
+
+    public int getPeerCount() {
+        return peerIPs.size();
+    }
+
+    public PeerStats getPeerStats() {
+        return peerStats;
+    }
+
+    public String getPeerIP(int peer) {
+        return peerIPs.get(peer);
+    }
+
+    public int getPeerPort(int peer) {
+        return peerPorts.get(peer);
+    }
+
+    private int getPeer(String peerIP, int peerPort) {
+        for (int peer = 0; peer < peerIPs.size(); peer++) {
+            if (peerIPs.get(peer).equals(peerIP) && peerPorts.get(peer) == peerPort) {
+                return peer;
+            }
+        }
+        peerIPs.add(peerIP);
+        peerPorts.add(peerPort);
+        return peerIPs.size() - 1;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * A P2P server, identified by the address peers can reach it at
+ */
+public class Host {
+    private String IPAddress;
+
+    private int portNumber;
+
+    public Host(String IPAddress, int portNumber) {
+        this.IPAddress = IPAddress;
+        this.portNumber = portNumber;
+    }
+
+    public String getIPAddress() {
+        return IPAddress;
+    }
+
+    public int getPortNumber() {
+        return portNumber;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other == this
+                || (other instanceof Host
+                && this.portNumber == ((Host) other).portNumber
+                && this.IPAddress.equals(((Host) other).IPAddress));
+    }
+
+    @Override
+    public int hashCode() {
+        return this.IPAddress.hashCode() + this.portNumber * 17;
+    }
+}
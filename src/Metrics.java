@@ -0,0 +1,126 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and gauges of a server, reported on demand by the STATS command.
+ * Recording takes no lock: counters and histogram buckets are LongAdders, which threads update without
+ * contending with each other. Callers look a counter or histogram up once and keep it, so the hot path
+ * does not go through the map either.
+ */
+public class Metrics {
+
+    private final ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    private final long startMillis = System.currentTimeMillis();
+
+    /**
+     * @return the counter of the given name, created at 0 on first use
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * @return the histogram of the given name, created empty on first use
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a value that is only read when the metrics are reported, such as the size of a table
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return every metric, one per line, in order of name
+     */
+    public String report() {
+        StringBuilder s = new StringBuilder();
+        s.append("uptime.seconds ").append((System.currentTimeMillis() - startMillis) / 1000)
+                .append(Constant.MESSAGE_DELIMITER);
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            s.append(counter.getKey()).append(" ").append(counter.getValue().sum()).append(Constant.MESSAGE_DELIMITER);
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            s.append(gauge.getKey()).append(" ").append(gauge.getValue().getAsLong())
+                    .append(Constant.MESSAGE_DELIMITER);
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            s.append(histogram.getKey()).append(" ").append(histogram.getValue())
+                    .append(Constant.MESSAGE_DELIMITER);
+        }
+        return s.toString();
+    }
+
+    /**
+     * Latencies counted in buckets of powers of two microseconds, which is precise enough to tell
+     * a cache hit from a disk read from a stalled client, and takes a fixed number of counters whatever the number of samples
+     */
+    public static class LatencyHistogram {
+
+        // Bucket i counts the latencies from 2^(i-1) up to 2^i - 1 microseconds, bucket 0 those under one
+        private final LongAdder[] buckets = new LongAdder[Long.SIZE + 1];
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param startNanos When the timed operation started, as given by System.nanoTime()
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(micros)].increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * @return the upper bound in microseconds of the bucket the given fraction of latencies falls in
+         */
+        private long getPercentileMicros(double fraction, long[] counts, long count) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, maxNanos.get() / 1000);
+                }
+            }
+            return maxNanos.get() / 1000;
+        }
+
+        @Override
+        public String toString() {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            if (count == 0) {
+                return "count=0";
+            }
+            return String.format("count=%d mean=%dus p50<=%dus p90<=%dus p99<=%dus max=%dus", count,
+                    totalNanos.sum() / count / 1000, getPercentileMicros(0.5, counts, count),
+                    getPercentileMicros(0.9, counts, count), getPercentileMicros(0.99, counts, count),
+                    maxNanos.get() / 1000);
+        }
+    }
+}
@@ -1,185 +1,729 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class P2PClient {
 
-    Socket clientSocket;
+    // One connection per directory node, by the address the node listens at. There is only the one
+    // directory server unless the directory is split into shards. Guarded by this client.
+    final Map<Host, DirectoryConnection> directoryConnections = new HashMap<>();
 
-    PrintWriter pw;
-    Scanner sc;
+    // Which directory node keeps which file, a single node unless the directory is split into shards
+    volatile ShardMap shardMap;
+    volatile boolean isDirectorySharded = false;
 
-    String messageReceived;
+    int downloadWorkerCount = Constant.DEFAULT_DOWNLOAD_WORKERS;
+
+    // Where this host's files are, which its own P2P server serves from
+    String directory = Constant.DEFAULT_DIRECTORY;
+
+    // The port this host's own P2P server listens on, announced to the directory server with HELLO
+    int ownServerPort = Constant.P2P_SERVER_PORT;
+
+    PeerConnectionPool peerConnectionPool = new PeerConnectionPool();
+
+    // Chooses which of the holders of a chunk to download it from
+    PeerSelector peerSelector = PeerSelector.forName(Constant.DEFAULT_PEER_SELECTOR);
+
+    // Hashes chunks for informing and checks downloaded chunks, off the download workers
+    ExecutorService hashWorkers = ChunkHasher.newHashWorkers();
 
     // String ownServerPublicIP;
     // String ownServerPublicPort;
 
-    private String getInformMessage(String fileName, int chunkNumber) {
+    // Keeps this host's lease with the directory server alive while the user is idle
+    ScheduledExecutorService heartbeat;
+
+    /**
+     * Sends one message about a file to the directory node that keeps the file and waits for its reply.
+     * If the node answers that the file belongs to another node, which happens after a node joins,
+     * the shard map is fetched from it again and the message sent once more.
+     */
+    private WireCodec.Frame sendToDirectory(String fileName, WireCodec.FrameWriter message) throws IOException {
+        ByteBuffer frame = message.finish();
+        Host node = shardMap.getNode(fileName);
+        WireCodec.Frame reply = getDirectoryConnection(node).send(frame);
+
+        if (reply.getType() == Constant.TYPE_WRONG_SHARD) {
+            refreshShardMap(node);
+            reply = getDirectoryConnection(shardMap.getNode(fileName)).send(frame);
+        }
+        return reply;
+    }
+
+    /**
+     * Sends the same message to every directory node in turn, after fetching the shard map again so that
+     * nodes that joined since are not missed
+     * @return the reply of each node that was asked, in the order of the nodes in the shard map
+     */
+    private Map<Host, WireCodec.Frame> sendToAllDirectories(WireCodec.FrameWriter message) throws IOException {
+        if (isDirectorySharded) {
+            refreshShardMap(shardMap.getNodes().get(0));
+        }
+        ByteBuffer frame = message.finish();
+        Map<Host, WireCodec.Frame> replies = new LinkedHashMap<>();
+        for (Host node : shardMap.getNodes()) {
+            replies.put(node, getDirectoryConnection(node).send(frame));
+        }
+        return replies;
+    }
+
+    /**
+     * @return the connection to a directory node, opened and greeted with HELLO if there is none yet
+     */
+    private synchronized DirectoryConnection getDirectoryConnection(Host node) throws IOException {
+        DirectoryConnection connection = directoryConnections.get(node);
+        if (connection != null) {
+            return connection;
+        }
+
+        connection = new DirectoryConnection(connectToServer(node.getIPAddress(), node.getPortNumber()));
+        if (connection.send(new WireCodec.FrameWriter(Constant.TYPE_HELLO).putInt(ownServerPort).finish()).getType()
+                != Constant.TYPE_ACK) {
+            System.out.println("HELLO was not acknowledged by the directory server");
+        }
+        directoryConnections.put(node, connection);
+        return connection;
+    }
 
-        String toServer = Constant.COMMAND_INFORM + Constant.MESSAGE_DELIMITER
-                + fileName + Constant.MESSAGE_DELIMITER
-                + chunkNumber + Constant.MESSAGE_DELIMITER;
-        pw.println(toServer);
-        pw.flush();
+    /**
+     * Asks a directory node for the shard map and adopts it
+     * @return whether the directory is split into shards, false for a single directory server
+     */
+    private boolean refreshShardMap(Host node) throws IOException {
+        WireCodec.Frame reply = getDirectoryConnection(node)
+                .send(new WireCodec.FrameWriter(Constant.TYPE_SHARD_MAP, 0).finish());
+
+        // A directory server older than sharding does not know the request
+        ShardMap newShardMap = reply.getType() == Constant.TYPE_SHARD_MAP_REPLY ? ShardMap.readFrom(reply) : null;
+        if (newShardMap == null) {
+            return false;
+        }
+        if (!newShardMap.hasSameNodes(shardMap)) {
+            System.out.println("Directory nodes are now " + newShardMap);
+        }
+        shardMap = newShardMap;
+        return true;
+    }
 
-        messageReceived = sc.nextLine();
-        System.out.println("Message from directory server: " + messageReceived);
-        sc.nextLine();
+    /**
+     * Informs the directory server of every range of chunks in the set in one message
+     * @param chunkHashes The hashes of every chunk of the file, or null to leave them to the peer that has them
+     */
+    private String getInformMessage(String fileName, int chunkSize, ChunkRangeSet chunks, byte[] chunkHashes)
+            throws IOException {
+
+        WireCodec.FrameWriter message = new WireCodec.FrameWriter(Constant.TYPE_INFORM,
+                chunkHashes == null ? 64 : 64 + chunkHashes.length)
+                .putString(fileName)
+                .putInt(chunkSize);
+        chunks.writeRanges(message, 1, Integer.MAX_VALUE);
+
+        if (chunkHashes == null) {
+            message.putInt(0);
+        } else {
+            message.putInt(chunkHashes.length / Constant.CHUNK_HASH_SIZE).putBytes(chunkHashes);
+        }
+
+        WireCodec.Frame reply = sendToDirectory(fileName, message);
 
-        if (messageReceived.equals(Constant.MESSAGE_ACK)) {
-            return "File " + fileName + "chunk " + chunkNumber + " informed to directory server";
+        if (reply.getType() == Constant.TYPE_ACK) {
+            return "File " + fileName + " chunks " + chunks + " informed to directory server";
         } else {
             return Constant.ERROR_CLIENT_INFORM_FAILED;
         }
     }
 
-    private String getQueryMessage(String fileName, int chunkNumber) {
-
-        String toServer = Constant.COMMAND_QUERY + Constant.MESSAGE_DELIMITER
-                + fileName + Constant.MESSAGE_DELIMITER
-                + chunkNumber + Constant.MESSAGE_DELIMITER;
-        pw.println(toServer);
-        pw.flush();
+    private String getQueryMessage(String fileName, int chunkNumber) throws IOException {
 
-        sc.nextLine();
-        messageReceived = sc.nextLine();
+        WireCodec.Frame reply = sendToDirectory(fileName, new WireCodec.FrameWriter(Constant.TYPE_QUERY)
+                .putString(fileName)
+                .putInt(chunkNumber));
 
-        if (messageReceived.equals(Constant.MESSAGE_CHUNK_NOT_EXIST)) {
-            sc.nextLine();
+        if (reply.getType() != Constant.TYPE_QUERY_REPLY) {
             return Constant.ERROR_QUERY_FILE_NOT_EXIST;
         } else {
-            String p2pServerIP = messageReceived;
-            String p2pServerPort = sc.nextLine();
-            sc.nextLine();
+            String p2pServerIP = reply.getString();
+            int p2pServerPort = reply.getInt();
+            int chunkSize = reply.getInt();
 
-            return "File " + fileName + " found at port " + p2pServerPort + " of P2P server " + p2pServerIP + Constant.MESSAGE_DELIMITER;
+            return "File " + fileName + " (chunk size " + chunkSize + " bytes) found at port " + p2pServerPort
+                    + " of P2P server " + p2pServerIP + Constant.MESSAGE_DELIMITER;
         }
     }
 
-    private String getDownloadMessage(String fileName) throws IOException {
+    /**
+     * Asks the directory server which peers hold which chunks of a file, one page of chunks at a time
+     * @return the chunk map of the file, or null if the directory server does not know the file
+     */
+    private FileChunkMap getQueryFileMessage(String fileName) throws IOException {
+
+        FileChunkMap chunkMap = null;
+        int firstChunkNumber = 1;
+
+        do {
+            WireCodec.Frame reply = sendToDirectory(fileName, new WireCodec.FrameWriter(Constant.TYPE_QUERY_FILE)
+                    .putString(fileName)
+                    .putInt(firstChunkNumber));
+
+            if (reply.getType() != Constant.TYPE_QUERY_FILE_REPLY) {
+                return null;
+            }
+
+            int chunkSize = reply.getInt();
+            int chunkCount = reply.getInt();
+            int nextPageChunkNumber = reply.getInt();
+
+            if (chunkMap == null) {
+                chunkMap = new FileChunkMap(chunkSize, chunkCount);
+            }
+
+            chunkMap.addPage(firstChunkNumber, reply);
+
+            firstChunkNumber = nextPageChunkNumber;
+        } while (firstChunkNumber != 0);
+
+        return chunkMap;
+    }
+
+    /**
+     * Downloads the chunks of a file that are not on disk yet, in the order the scheduler gives
+     */
+    String getDownloadMessage(String fileName, ChunkScheduler chunkScheduler) throws IOException {
 
-        boolean isExist = new File(Constant.DEFAULT_DIRECTORY + fileName).exists();
+        boolean isExist = new File(directory + fileName).exists();
         if (isExist) {
             return Constant.ERROR_DOWNLOAD_FILE_EXIST;
         }
 
-        FileOutputStream fos = new FileOutputStream(Constant.DEFAULT_DIRECTORY + fileName);
+        // Plan the whole download from the chunk map, so the directory server is not asked per chunk
+        FileChunkMap chunkMap = getQueryFileMessage(fileName);
+        if (chunkMap == null || chunkMap.getChunkCount() == 0) {
+            return Constant.ERROR_DOWNLOAD_FILE_NOT_EXIST;
+        }
+        if (!chunkMap.isComplete()) {
+            return Constant.ERROR_DOWNLOAD_FILE_INCOMPLETE;
+        }
+
+        int chunkSize = chunkMap.getChunkSize();
+        int chunkCount = chunkMap.getChunkCount();
 
-        BufferedOutputStream bos = new BufferedOutputStream(fos);
+        // Chunks left on disk by an interrupted attempt are kept, and only the missing ones are fetched
+        DownloadManifest manifest = DownloadManifest.open(directory, fileName, chunkSize, chunkCount);
+        if (manifest.isUnverified()) {
+            verifyPartFile(manifest, chunkMap, fileName);
+        }
+        if (manifest.getHeldCount() > 0) {
+            System.out.println("Resuming " + fileName + " with " + manifest.getHeldCount() + " of "
+                    + chunkCount + " chunks already downloaded");
+            getInformMessage(fileName, chunkSize, manifest.getHeldChunks(), null);
+        }
 
-        int chunkNumber = 1;
+        FileChannel partFile = FileChannel.open(DownloadManifest.getPartPath(directory, fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        preallocate(partFile, chunkSize, chunkCount);
 
-        while (true) {
-            messageReceived = getQueryMessage(fileName, chunkNumber);
+        // Chunks are fetched concurrently from peers that hold them. Each is written at its place in the part file
+        // by the worker that received or checked it, so chunks land in whatever order they arrive.
+        ExecutorService downloadWorkers = Executors.newFixedThreadPool(downloadWorkerCount);
+        BlockingQueue<PendingChunk> finishedChunks = new LinkedBlockingQueue<>();
+        int chunksInFlight = 0;
+        int maxChunksInFlight = downloadWorkerCount * Constant.DOWNLOAD_CHUNKS_IN_FLIGHT_PER_WORKER;
 
-            if (messageReceived.equals(Constant.ERROR_QUERY_FILE_NOT_EXIST)) {
-                break;
+        // Chunks assigned to the same peer are requested together over one pipelined connection
+        Map<Integer, ChunkBatch> openBatches = new HashMap<>();
+
+        // Written chunks that are not yet in the manifest on disk nor informed to the directory server
+        ChunkRangeSet unsavedChunks = new ChunkRangeSet();
+        int unsavedChunkCount = 0;
+
+        try {
+            for (int chunkNumber : chunkScheduler.schedule(chunkMap, manifest)) {
+                // Spread the chunks over the peers that hold them, favouring the ones that serve faster
+                int peer = peerSelector.select(chunkMap.getHolders(chunkNumber), chunkMap.getPeerStats(), chunkSize);
+                chunkMap.getPeerStats().addLoad(peer, 1);
+
+                PendingChunk pendingChunk = new PendingChunk(chunkNumber, peer);
+                pendingChunk.result.whenComplete((chunk, failure) -> {
+                    if (chunk != null) {
+                        writeChunk(partFile, chunkSize, pendingChunk, chunk);
+                    }
+                    finishedChunks.add(pendingChunk);
+                });
+                chunksInFlight++;
+
+                ChunkBatch batch = openBatches.computeIfAbsent(peer, key -> new ChunkBatch(peer,
+                        chunkMap.getPeerIP(peer), chunkMap.getPeerPort(peer)));
+                batch.add(pendingChunk);
+
+                if (batch.size() >= Constant.PEER_PIPELINE_DEPTH) {
+                    openBatches.remove(peer);
+                    submitBatch(downloadWorkers, fileName, chunkMap, batch);
+                }
+
+                // Keep memory bounded by waiting for any chunk to be written once the window is full
+                if (chunksInFlight >= maxChunksInFlight) {
+                    submitBatches(downloadWorkers, fileName, chunkMap, openBatches);
+                    int writtenChunkNumber = takeWrittenChunk(finishedChunks, fileName);
+                    chunksInFlight--;
+                    manifest.markHeld(writtenChunkNumber);
+                    unsavedChunks.add(writtenChunkNumber, writtenChunkNumber);
+                    unsavedChunkCount++;
+                }
+
+                // Written chunks are saved and informed in batches rather than one at a time
+                if (unsavedChunkCount >= Constant.DOWNLOAD_INFORM_BATCH_CHUNKS) {
+                    saveChunks(partFile, manifest, fileName, chunkSize, unsavedChunks);
+                    unsavedChunks = new ChunkRangeSet();
+                    unsavedChunkCount = 0;
+                }
             }
 
-            // Get IP address of P2P server
-            int i;
-            for (i = 0; i < messageReceived.length() - 10; i++) {
-                if (messageReceived.substring(i, i + 10).equals("P2P server")) {
-                    i = i + 12;
-                    break;
+            submitBatches(downloadWorkers, fileName, chunkMap, openBatches);
+
+            while (chunksInFlight > 0) {
+                int writtenChunkNumber = takeWrittenChunk(finishedChunks, fileName);
+                chunksInFlight--;
+                manifest.markHeld(writtenChunkNumber);
+                unsavedChunks.add(writtenChunkNumber, writtenChunkNumber);
+            }
+        } finally {
+            // Whatever was written so far is kept for the next attempt, even if this one failed. This comes
+            // before the workers are interrupted, since interrupting a write closes the part file.
+            try {
+                if (!unsavedChunks.isEmpty()) {
+                    saveChunks(partFile, manifest, fileName, chunkSize, unsavedChunks);
                 }
+            } finally {
+                downloadWorkers.shutdownNow();
+                partFile.close();
             }
-            String p2pServerIP = messageReceived.substring(i, messageReceived.length() - 2);
+        }
+
+        manifest.promote();
+
+        // The report only helps other downloaders, so the download stands even if it cannot be sent
+        try {
+            sendPeerReport(fileName, chunkMap);
+        } catch (IOException ioe) {
+            System.out.println("Failed to send the peer report: " + ioe.getMessage());
+        }
+
+        return "File " + fileName + " downloaded from peer server" + Constant.MESSAGE_DELIMITER;
+    }
 
-            // Get port number of P2P server
-            for (i = 0; i < messageReceived.length() - 4; i++) {
-                if (messageReceived.substring(i, i + 4).equals("port")) {
-                    i = i + 5;
+    /**
+     * Takes the chunks of a part file left without a readable manifest as held if they match their hashes.
+     * Without hashes nothing can be trusted, so the part file is discarded. A last chunk that does not match
+     * is cut off, since the part file may be longer than the file.
+     */
+    private void verifyPartFile(DownloadManifest manifest, FileChunkMap chunkMap, String fileName)
+            throws IOException {
+        Path partPath = DownloadManifest.getPartPath(directory, fileName);
+        if (!chunkMap.hasHashes()) {
+            Files.deleteIfExists(partPath);
+            return;
+        }
+
+        int chunkSize = chunkMap.getChunkSize();
+        int chunkCount = chunkMap.getChunkCount();
+        try (FileChannel partFile = FileChannel.open(partPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long partFileSize = partFile.size();
+            for (int chunkNumber = 1; chunkNumber <= chunkCount; chunkNumber++) {
+                long position = (long) chunkSize * (chunkNumber - 1);
+                int length = (int) Math.min(chunkSize, partFileSize - position);
+                if (length <= 0) {
                     break;
                 }
+                ByteBuffer chunk = ByteBuffer.allocate(length);
+                while (chunk.hasRemaining() && partFile.read(chunk, position + chunk.position()) != -1) {
+                    // read until the chunk is full or the part file ends
+                }
+                if (!chunk.hasRemaining() && chunkMap.isValidChunk(chunkNumber, chunk.array())) {
+                    manifest.markHeld(chunkNumber);
+                }
             }
-            StringBuilder portBuilder = new StringBuilder();
-            while (messageReceived.charAt(i) != ' ') {
-                portBuilder.append(messageReceived.charAt(i));
-                i++;
+
+            long lastChunkPosition = (long) chunkSize * (chunkCount - 1);
+            if (!manifest.isHeld(chunkCount) && partFileSize > lastChunkPosition) {
+                partFile.truncate(lastChunkPosition);
             }
-            int p2pServerPort = Integer.parseInt(portBuilder.toString());
+            partFile.force(false);
+        }
+        manifest.save();
+        System.out.println("Kept " + manifest.getHeldCount() + " of " + chunkCount + " chunks of " + fileName
+                + " that match their hashes");
+    }
 
-            Socket socketToP2PServer = connectToServer(p2pServerIP, p2pServerPort);
+    /**
+     * Extends the part file up to where its last chunk starts, so that chunks written out of order land inside
+     * the file rather than growing it one write at a time. The last chunk, whose length is not known yet,
+     * gives the file its final length. A part file left by an earlier attempt is never shrunk.
+     */
+    private void preallocate(FileChannel partFile, int chunkSize, int chunkCount) throws IOException {
+        long lastChunkPosition = (long) chunkSize * (chunkCount - 1);
+        if (partFile.size() < lastChunkPosition) {
+            partFile.write(ByteBuffer.allocate(1), lastChunkPosition - 1);
+        }
+    }
 
-            sendQueryToP2PServer(fileName, chunkNumber, socketToP2PServer);
+    /**
+     * Writes a chunk that has been received and checked at its place in the part file.
+     * Runs on whichever worker completed the chunk; positional writes need no lock.
+     */
+    private void writeChunk(FileChannel partFile, int chunkSize, PendingChunk pendingChunk, byte[] chunk) {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long position = (long) chunkSize * (pendingChunk.chunkNumber - 1);
+        try {
+            while (buffer.hasRemaining()) {
+                position += partFile.write(buffer, position);
+            }
+        } catch (IOException ioe) {
+            pendingChunk.writeFailure = ioe;
+        }
+    }
 
-            receiveDataFromP2PServer(bos, socketToP2PServer);
+    /**
+     * Waits for any chunk to be written, or to fail for good
+     * @return the number of the chunk written
+     */
+    private int takeWrittenChunk(BlockingQueue<PendingChunk> finishedChunks, String fileName) throws IOException {
+        PendingChunk pendingChunk = null;
+        try {
+            pendingChunk = finishedChunks.take();
+            pendingChunk.result.get();
+        } catch (ExecutionException ee) {
+            throw new IOException("Failed to download chunk " + pendingChunk.chunkNumber + " of " + fileName,
+                    ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + fileName, ie);
+        }
 
-            socketToP2PServer.close();
+        if (pendingChunk.writeFailure != null) {
+            throw new IOException("Failed to write chunk " + pendingChunk.chunkNumber + " of " + fileName,
+                    pendingChunk.writeFailure);
+        }
+        return pendingChunk.chunkNumber;
+    }
 
-            getInformMessage(fileName, chunkNumber);
+    /**
+     * Makes written chunks durable, records them in the manifest, then informs the directory server of them.
+     * The data reaches the disk before the manifest does, so a resumed download never trusts a chunk
+     * that was not fully written.
+     */
+    private void saveChunks(FileChannel partFile, DownloadManifest manifest, String fileName, int chunkSize,
+                            ChunkRangeSet chunks) throws IOException {
+        partFile.force(false);
+        manifest.save();
+        getInformMessage(fileName, chunkSize, chunks, null);
+    }
 
-            chunkNumber++;
+    private void submitBatches(ExecutorService downloadWorkers, String fileName, FileChunkMap chunkMap,
+                               Map<Integer, ChunkBatch> batches) {
+        for (ChunkBatch batch : batches.values()) {
+            submitBatch(downloadWorkers, fileName, chunkMap, batch);
         }
+        batches.clear();
+    }
 
-        bos.close();
+    private void submitBatch(ExecutorService downloadWorkers, String fileName, FileChunkMap chunkMap,
+                             ChunkBatch batch) {
+        downloadWorkers.execute(() -> fetchChunks(downloadWorkers, fileName, chunkMap, batch));
+    }
 
-        if (chunkNumber == 1) {
-            File file = new File(Constant.DEFAULT_DIRECTORY + fileName);
-            file.delete();
-            return Constant.ERROR_DOWNLOAD_FILE_NOT_EXIST;
+    /**
+     * Fetches a batch of chunks from one P2P server over a pooled connection. All queries are sent
+     * before the first reply is read. Runs on a download worker thread.
+     * Chunks the server does not hold or fails to send are fetched again from another peer.
+     * Anything else that goes wrong, such as a task rejected as the download shuts down, fails the chunks
+     * of the batch, since the download would otherwise wait for them forever.
+     */
+    private void fetchChunks(ExecutorService downloadWorkers, String fileName, FileChunkMap chunkMap,
+                             ChunkBatch batch) {
+        PeerConnectionPool.PeerConnection connection = null;
+        PeerStats peerStats = chunkMap.getPeerStats();
+        String peerName = batch.p2pServerIP + ":" + batch.p2pServerPort;
+        int chunksReceived = 0;
+        long bytesReceived = 0;
+
+        try {
+            try {
+                connection = peerConnectionPool.borrow(batch.p2pServerIP, batch.p2pServerPort);
+                double connectMillis = connection.takeConnectMillis();
+                if (connectMillis > 0) {
+                    peerStats.recordRoundTrip(batch.peer, connectMillis);
+                }
+
+                long startTime = System.nanoTime();
+                for (PendingChunk pendingChunk : batch.pendingChunks) {
+                    connection.sendQuery(fileName, pendingChunk.chunkNumber, chunkMap.getChunkSize());
+                }
+                connection.flush();
+
+                for (PendingChunk pendingChunk : batch.pendingChunks) {
+                    byte[] chunk = connection.receiveChunk();
+                    chunksReceived++;
+                    peerStats.addLoad(batch.peer, -1);
+                    if (chunk == null) {
+                        retryChunk(downloadWorkers, fileName, chunkMap, pendingChunk,
+                                "Chunk " + pendingChunk.chunkNumber + " is not held by " + peerName);
+                    } else if (chunkMap.hasHashes()) {
+                        bytesReceived += chunk.length;
+                        hashWorkers.execute(() -> verifyChunk(downloadWorkers, fileName, chunkMap, pendingChunk,
+                                chunk, peerName));
+                    } else {
+                        bytesReceived += chunk.length;
+                        pendingChunk.result.complete(chunk);
+                    }
+                }
+
+                peerConnectionPool.release(connection);
+                connection = null;
+                if (bytesReceived > 0) {
+                    peerStats.recordTransfer(batch.peer, bytesReceived, (System.nanoTime() - startTime) / 1e6);
+                }
+            } catch (IOException ioe) {
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+                peerStats.recordFailure(batch.peer);
+                for (PendingChunk pendingChunk : batch.pendingChunks.subList(chunksReceived, batch.size())) {
+                    peerStats.addLoad(batch.peer, -1);
+                    retryChunk(downloadWorkers, fileName, chunkMap, pendingChunk,
+                            "Failed to fetch chunk " + pendingChunk.chunkNumber + " from " + peerName + ": "
+                                    + ioe.getMessage());
+                }
+            }
+        } catch (RuntimeException re) {
+            if (connection != null) {
+                connection.close();
+            }
+            // Chunks already completed are left as they are
+            for (PendingChunk pendingChunk : batch.pendingChunks) {
+                pendingChunk.result.completeExceptionally(re);
+            }
         }
-        return "File " + fileName + " downloaded from peer server" + Constant.MESSAGE_DELIMITER;
     }
 
-    private String getListMessage() {
+    /**
+     * Checks a received chunk against its hash. Runs on a hash worker thread.
+     * The chunk fails if anything goes wrong beyond a mismatch, so that the download does not wait for it forever.
+     */
+    private void verifyChunk(ExecutorService downloadWorkers, String fileName, FileChunkMap chunkMap,
+                             PendingChunk pendingChunk, byte[] chunk, String peerName) {
+        try {
+            if (chunkMap.isValidChunk(pendingChunk.chunkNumber, chunk)) {
+                pendingChunk.result.complete(chunk);
+            } else {
+                retryChunk(downloadWorkers, fileName, chunkMap, pendingChunk,
+                        "Chunk " + pendingChunk.chunkNumber + " from " + peerName + " does not match its hash");
+            }
+        } catch (RuntimeException re) {
+            pendingChunk.result.completeExceptionally(re);
+        }
+    }
+
+    /**
+     * Requests a single chunk from a holder that has not been tried for it yet,
+     * or fails the chunk if every holder has been tried
+     */
+    private void retryChunk(ExecutorService downloadWorkers, String fileName, FileChunkMap chunkMap,
+                            PendingChunk pendingChunk, String reason) {
+        List<Integer> untriedPeers = new ArrayList<>(chunkMap.getHolders(pendingChunk.chunkNumber));
+        untriedPeers.removeAll(pendingChunk.triedPeers);
+
+        if (untriedPeers.isEmpty()) {
+            pendingChunk.result.completeExceptionally(new IOException(reason + ", and no other peer holds it"));
+            return;
+        }
+
+        System.out.println(reason + ", fetching it from another peer");
+        int peer = peerSelector.select(untriedPeers, chunkMap.getPeerStats(), chunkMap.getChunkSize());
+        chunkMap.getPeerStats().addLoad(peer, 1);
+        pendingChunk.triedPeers.add(peer);
+        ChunkBatch retryBatch = new ChunkBatch(peer, chunkMap.getPeerIP(peer), chunkMap.getPeerPort(peer));
+        retryBatch.add(pendingChunk);
+        try {
+            submitBatch(downloadWorkers, fileName, chunkMap, retryBatch);
+        } catch (RejectedExecutionException ree) { // the download has already failed
+            pendingChunk.result.completeExceptionally(ree);
+        }
+    }
+
+    /**
+     * Tells the directory node that keeps the file how fast the peers of its download served, so that it can
+     * point other downloaders at the faster ones
+     */
+    private void sendPeerReport(String fileName, FileChunkMap chunkMap) throws IOException {
+        PeerStats peerStats = chunkMap.getPeerStats();
+        WireCodec.FrameWriter message = new WireCodec.FrameWriter(Constant.TYPE_PEER_REPORT);
+        int peerCountPosition = message.position();
+        int peerCount = 0;
+        message.putInt(0);
+
+        for (int peer = 0; peer < chunkMap.getPeerCount(); peer++) {
+            if (peerStats.getThroughput(peer) == 0 && peerStats.getRoundTripTime(peer) == 0) {
+                continue;
+            }
+            message.putString(chunkMap.getPeerIP(peer))
+                    .putInt(chunkMap.getPeerPort(peer))
+                    .putInt((int) Math.min(Integer.MAX_VALUE, peerStats.getThroughput(peer) * 1000L))
+                    .putInt((int) (peerStats.getRoundTripTime(peer) * 1000));
+            peerCount++;
+        }
+        message.putIntAt(peerCountPosition, peerCount);
+
+        if (sendToDirectory(fileName, message).getType() != Constant.TYPE_ACK) {
+            System.out.println("Peer report was not acknowledged by the directory server");
+        }
+    }
+
+    /**
+     * Renews this host's lease with every directory node, picking up nodes that joined since the last time.
+     * Runs on the heartbeat thread.
+     */
+    private void sendHeartbeat() {
+        ShardMap currentShardMap = shardMap;
+        if (isDirectorySharded) {
+            try {
+                refreshShardMap(currentShardMap.getNodes().get(0));
+                currentShardMap = shardMap;
+            } catch (IOException ioe) {
+                System.out.println("Failed to refresh the shard map: " + ioe.getMessage());
+            }
+        }
 
-        String toServer = Constant.COMMAND_LIST;
-        pw.println(toServer);
-        pw.flush();
+        ByteBuffer message = new WireCodec.FrameWriter(Constant.TYPE_HEARTBEAT, 0).finish();
+        for (Host node : currentShardMap.getNodes()) {
+            try {
+                if (getDirectoryConnection(node).send(message).getType() != Constant.TYPE_ACK) {
+                    System.out.println("Heartbeat was not acknowledged by the directory server");
+                }
+            } catch (IOException ioe) {
+                System.out.println("Failed to send heartbeat: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lists the files every directory node keeps, as one sorted list
+     */
+    private String getListMessage() throws IOException {
+
+        Set<String> fileNames = new TreeSet<>();
+        for (WireCodec.Frame reply : sendToAllDirectories(new WireCodec.FrameWriter(Constant.TYPE_LIST, 0)).values()) {
+            int fileCount = reply.getInt();
+            for (int i = 0; i < fileCount; i++) {
+                fileNames.add(reply.getString());
+            }
+        }
 
         StringBuilder replyMessage = new StringBuilder();
         replyMessage.append("File list:").append(Constant.MESSAGE_DELIMITER);
 
-        sc.nextLine();
-        messageReceived = sc.nextLine();
-
-        if (messageReceived.equals(Constant.MESSAGE_FILE_LIST_EMPTY)) {
+        if (fileNames.isEmpty()) {
             replyMessage.append("There is no file available").append(Constant.MESSAGE_DELIMITER);
         } else {
-            int fileCount = Integer.parseInt(messageReceived);
-            for (int i = 0; i < fileCount; i++) {
-                messageReceived = sc.nextLine();
-                replyMessage.append(messageReceived).append(Constant.MESSAGE_DELIMITER);
+            for (String fileName : fileNames) {
+                replyMessage.append(fileName).append(Constant.MESSAGE_DELIMITER);
             }
         }
 
-        sc.nextLine();
+        return replyMessage.toString();
+    }
+
+    /**
+     * Asks every directory node and this host's own P2P server for their metrics
+     * @param includeTables Whether the directory nodes should also list which hosts hold which chunks
+     */
+    private String getStatsMessage(boolean includeTables) throws IOException {
+        Map<Host, WireCodec.Frame> replies = sendToAllDirectories(new WireCodec.FrameWriter(Constant.TYPE_STATS)
+                .putInt(includeTables ? 1 : 0));
+
+        StringBuilder replyMessage = new StringBuilder();
+        for (Map.Entry<Host, WireCodec.Frame> reply : replies.entrySet()) {
+            replyMessage.append("Directory server");
+            if (isDirectorySharded) {
+                replyMessage.append(" ").append(reply.getKey().getIPAddress()).append(":")
+                        .append(reply.getKey().getPortNumber());
+            }
+            replyMessage.append(":").append(Constant.MESSAGE_DELIMITER)
+                    .append(new String(reply.getValue().getRemainingBytes(), StandardCharsets.UTF_8))
+                    .append(Constant.MESSAGE_DELIMITER);
+        }
+
+        try (Socket socketToOwnServer = connectToServer("localhost", ownServerPort)) {
+            new WireCodec.FrameWriter(Constant.TYPE_STATS, 0).writeTo(socketToOwnServer.getOutputStream());
+            WireCodec.Frame ownServerReply = WireCodec.readFrame(new DataInputStream(socketToOwnServer.getInputStream()));
+            replyMessage.append("Own P2P server:").append(Constant.MESSAGE_DELIMITER)
+                    .append(new String(ownServerReply.getRemainingBytes(), StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            replyMessage.append("Own P2P server is not reachable: ").append(ioe.getMessage())
+                    .append(Constant.MESSAGE_DELIMITER);
+        }
 
         return replyMessage.toString();
     }
 
-    private String getExitMessage() throws IOException {
+    String getExitMessage() throws IOException {
 
-        String toServer = Constant.COMMAND_EXIT;
-        pw.println(toServer);
-        pw.flush();
+        heartbeat.shutdownNow();
 
-        messageReceived =  sc.nextLine();
-        sc.nextLine();
+        Collection<WireCodec.Frame> replies =
+                sendToAllDirectories(new WireCodec.FrameWriter(Constant.TYPE_EXIT, 0)).values();
 
         sendExitToOwnServer();
 
-        return messageReceived + Constant.MESSAGE_DELIMITER;
+        for (WireCodec.Frame reply : replies) {
+            if (reply.getType() != Constant.TYPE_GOODBYE) {
+                return "Unexpected reply of type " + reply.getType() + " to EXIT" + Constant.MESSAGE_DELIMITER;
+            }
+        }
+        return "Goodbye from directory server" + Constant.MESSAGE_DELIMITER;
     }
 
     private void sendExitToOwnServer() throws IOException {
-        Socket socketToOwnServer = connectToServer("localhost", Constant.P2P_SERVER_PORT);
-        PrintWriter writerToOwnServer = new PrintWriter(socketToOwnServer.getOutputStream(), true);
-        writerToOwnServer.println(Constant.COMMAND_EXIT);
-        writerToOwnServer.flush();
+        Socket socketToOwnServer = connectToServer("localhost", ownServerPort);
+        new WireCodec.FrameWriter(Constant.TYPE_EXIT, 0).writeTo(socketToOwnServer.getOutputStream());
 
-        Scanner scFromOwnServer = new Scanner(socketToOwnServer.getInputStream());
-        if (!scFromOwnServer.nextLine().equals(Constant.MESSAGE_ACK)) {
+        DataInputStream fromOwnServer = new DataInputStream(socketToOwnServer.getInputStream());
+        if (WireCodec.readFrame(fromOwnServer).getType() != Constant.TYPE_ACK) {
             System.out.println(Constant.ERROR_OWN_SERVER_NOT_CLOSED);
         }
 
-        scFromOwnServer.close();
+        fromOwnServer.close();
         socketToOwnServer.close();
     }
 
@@ -203,51 +747,123 @@ public class P2PClient {
         return new Socket(p2pServerIP, p2pServerPort);
     }
 
-    private void receiveDataFromP2PServer(BufferedOutputStream bos, Socket socketToP2PServer) throws IOException {
-        byte[] buffer = new byte[Constant.CHUNK_SIZE];
-        int bytesRead = socketToP2PServer.getInputStream().read(buffer);
+    /**
+     * Picks the chunk size for a file that is informed for the first time. Larger files get larger chunks
+     * so that the number of chunks stays around Constant.TARGET_CHUNKS_PER_FILE.
+     */
+    private int getChunkSize(long fileLength) {
+        long targetChunkSize = (fileLength + Constant.TARGET_CHUNKS_PER_FILE - 1) / Constant.TARGET_CHUNKS_PER_FILE;
 
-        bos.write(buffer, 0, bytesRead);
-        bos.flush();
+        int chunkSize = Constant.MIN_CHUNK_SIZE;
+        while (chunkSize < targetChunkSize && chunkSize < Constant.MAX_CHUNK_SIZE) {
+            chunkSize *= 2;
+        }
+
+        return chunkSize;
     }
 
-    private void sendQueryToP2PServer(String fileName, int chunkNumber, Socket socketToP2PServer) throws IOException {
+    private int getNumberOfChunks(String fileName, int chunkSize) {
+        File f = new File(directory + fileName);
+        if (!f.isFile()) {
+            return -1;
+        }
+        long fileLength = f.length();
+
+        int chunkCount = (int) (fileLength / chunkSize);
 
-        PrintWriter writerToP2PServer = new PrintWriter(socketToP2PServer.getOutputStream(), true);
+        if (fileLength > ((long) chunkCount * chunkSize)) {
+            chunkCount = chunkCount + 1;
+        }
 
-        String toP2PServer = Constant.COMMAND_QUERY + Constant.MESSAGE_DELIMITER
-                + fileName + Constant.MESSAGE_DELIMITER
-                + chunkNumber + Constant.MESSAGE_DELIMITER;
-        writerToP2PServer.println(toP2PServer);
-        writerToP2PServer.flush();
+        return chunkCount;
     }
 
-    private int getNumberOfChunks(String fileName) {
-        File f = new File(Constant.DEFAULT_DIRECTORY + fileName);
-        int fileLength = (int) f.length();
+    /**
+     * Hashes a whole file in the directory and informs the directory server that this host holds all of it
+     */
+    String informFile(String fileName) throws IOException {
+        int chunkSize = getChunkSize(new File(directory + fileName).length());
+        int chunkNumber = getNumberOfChunks(fileName, chunkSize);
+        System.out.println("Number of chunks: " + chunkNumber + " of " + chunkSize + " bytes");
 
-        int chunkCount = fileLength / Constant.CHUNK_SIZE;
+        if (chunkNumber == -1) {
+            return Constant.ERROR_INFORM_FILE_NOT_EXIST;
+        }
+        // An empty file has no chunk to inform, and the directory would list nothing for it
+        if (chunkNumber == 0) {
+            return Constant.ERROR_INFORM_FILE_EMPTY;
+        }
 
-        if (fileLength > (chunkCount * Constant.CHUNK_SIZE)) {
-            chunkCount = chunkCount + 1;
+        ChunkRangeSet wholeFile = new ChunkRangeSet();
+        wholeFile.add(1, chunkNumber);
+        byte[] chunkHashes = ChunkHasher.hashFile(Paths.get(directory + fileName),
+                chunkSize, chunkNumber, hashWorkers);
+        String replyMessage = getInformMessage(fileName, chunkSize, wholeFile, chunkHashes);
+        if (replyMessage.equals(Constant.ERROR_CLIENT_INFORM_FAILED)) {
+            return replyMessage;
         }
+        return "File " + fileName + " informed to directory server" + Constant.MESSAGE_DELIMITER;
+    }
 
-        return chunkCount;
+    /**
+     * Connects to the directory server, tells it which port this host's own P2P server listens on,
+     * and starts renewing this host's lease. If the directory is split into shards, the server is any one
+     * of its nodes, and the others are connected to as files they keep are asked about.
+     */
+    void connect(String serverIP, int serverPort) throws IOException {
+        Host seed = new Host(serverIP, serverPort);
+        shardMap = new ShardMap(Collections.singletonList(seed));
+        getDirectoryConnection(seed);
+        System.out.println("Connected to directory server: " + serverIP + " at port " + serverPort);
+
+        isDirectorySharded = refreshShardMap(seed);
+        if (isDirectorySharded) {
+            System.out.println("The directory is split over nodes " + shardMap);
+            // The nodes list themselves under their own addresses, which may not be the one given
+            if (!shardMap.contains(seed)) {
+                closeDirectoryConnection(seed);
+            }
+        }
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::sendHeartbeat, Constant.HEARTBEAT_INTERVAL_MS,
+                Constant.HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void closeDirectoryConnection(Host node) throws IOException {
+        DirectoryConnection connection = directoryConnections.remove(node);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the connections to the directory nodes and to peers. Meant to follow getExitMessage.
+     */
+    void disconnect() throws IOException {
+        peerConnectionPool.closeAll();
+        hashWorkers.shutdown();
+
+        synchronized (this) {
+            for (DirectoryConnection connection : directoryConnections.values()) {
+                connection.close();
+            }
+            directoryConnections.clear();
+        }
     }
 
     private void start(String serverIP, int serverPort) throws IOException {
 
-        // Create a client socket and connect to the server
-        clientSocket = connectToServer(serverIP, serverPort);
-        System.out.println("Connected to directory server: " + serverIP + " at port " + serverPort);
+        connect(serverIP, serverPort);
 
         // Read user input from keyboard
         Scanner scanner = new Scanner(System.in);
         String fromClient = scanner.next();
 
-        pw = new PrintWriter(clientSocket.getOutputStream(), true);
-        sc = new Scanner(clientSocket.getInputStream());
-
         // Get own transient server's public IP and port, disabled due to symmetric network
         // messageReceived = askIpconfigToOwnServer();
         // String[] temp = messageReceived.split(":");
@@ -263,26 +879,8 @@ public class P2PClient {
             case Constant.COMMAND_INFORM:
                 fileName = scanner.next();
                 System.out.println("File name: " + fileName);
-                chunkNumber = getNumberOfChunks(fileName);
-                System.out.println("Number of chunks: " + chunkNumber);
-
-                if (chunkNumber == -1) {
-                    System.out.println(Constant.ERROR_INFORM_FILE_NOT_EXIST);
-                    break;
-                }
-
-                boolean isInformSuccess = true;
-                for (int i = 1; i <= chunkNumber; i++) {
-                    replyMessage = getInformMessage(fileName, i);
-                    if (replyMessage.equals(Constant.ERROR_CLIENT_INFORM_FAILED)) {
-                        System.out.println(replyMessage);
-                        isInformSuccess = false;
-                        break;
-                    }
-                }
-                if (isInformSuccess) {
-                    System.out.println("File " + fileName + " informed to directory server" + Constant.MESSAGE_DELIMITER);
-                }
+                replyMessage = informFile(fileName);
+                System.out.println(replyMessage);
                 break;
             case Constant.COMMAND_QUERY:
                 fileName = scanner.next();
@@ -292,13 +890,27 @@ public class P2PClient {
                 break;
             case Constant.COMMAND_DOWNLOAD:
                 fileName = scanner.next();
-                replyMessage = getDownloadMessage(fileName);
+                // An optional chunk order may follow the file name
+                String schedulerName = scanner.nextLine().trim();
+                if (schedulerName.isEmpty()) {
+                    schedulerName = Constant.DEFAULT_CHUNK_SCHEDULER;
+                }
+                try {
+                    replyMessage = getDownloadMessage(fileName, ChunkScheduler.forName(schedulerName));
+                } catch (IllegalArgumentException iae) {
+                    replyMessage = iae.getMessage() + Constant.MESSAGE_DELIMITER;
+                }
                 System.out.println(replyMessage);
                 break;
             case Constant.COMMAND_LIST:
                 replyMessage = getListMessage();
                 System.out.println(replyMessage);
                 break;
+            case Constant.COMMAND_STATS:
+                // "STATS TABLES" also lists the directory server's tables
+                replyMessage = getStatsMessage(scanner.nextLine().trim().equalsIgnoreCase("TABLES"));
+                System.out.println(replyMessage);
+                break;
             case Constant.COMMAND_EXIT:
                 replyMessage = getExitMessage();
                 System.out.println(replyMessage);
@@ -311,9 +923,7 @@ public class P2PClient {
 
             if (fromClient.toUpperCase().equals(Constant.COMMAND_EXIT)) {
                 scanner.close();
-                sc.close();
-
-                clientSocket.close();
+                disconnect();
 
                 break;
             }
@@ -324,9 +934,11 @@ public class P2PClient {
 
     public static void main(String[] args) {
 
-        // Check if the number of command line argument is 2
-        if (args.length != 2) {
-            System.err.println("Usage: java TCPEchoClient serverIP serverPort");
+        // Check if the number of command line argument is 2, with optional download worker count, peer selector,
+        // own P2P server port and directory
+        if (args.length < 2 || args.length > 6) {
+            System.err.println("Usage: java P2PClient serverIP serverPort [downloadWorkers] [peerSelector]"
+                    + " [ownServerPort] [directory]");
             System.exit(1);
         }
 
@@ -335,10 +947,92 @@ public class P2PClient {
 
         try {
             P2PClient client = new P2PClient();
+            if (args.length >= 3) {
+                client.downloadWorkerCount = Integer.parseInt(args[2]);
+            }
+            if (args.length >= 4) {
+                client.peerSelector = PeerSelector.forName(args[3]);
+            }
+            if (args.length >= 5) {
+                client.ownServerPort = Integer.parseInt(args[4]);
+            }
+            if (args.length >= 6) {
+                client.directory = args[5].endsWith("/") ? args[5] : args[5] + "/";
+            }
             client.start(serverIP, serverPort);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * A connection to one directory node, shared by the main thread and the heartbeat thread
+     */
+    private static class DirectoryConnection {
+        private final Socket socket;
+        private final DataOutputStream toDirectory;
+        private final DataInputStream fromDirectory;
+
+        public DirectoryConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.toDirectory = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.fromDirectory = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        /**
+         * Sends one message and waits for its reply
+         * @param frame A finished frame, which is left as it is so that it can be sent again
+         */
+        public synchronized WireCodec.Frame send(ByteBuffer frame) throws IOException {
+            toDirectory.write(frame.array(), frame.arrayOffset(), frame.limit());
+            toDirectory.flush();
+            return WireCodec.readFrame(fromDirectory);
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * A chunk being downloaded, and the peers it has been requested from so far
+     */
+    private static class PendingChunk {
+        private final int chunkNumber;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private final List<Integer> triedPeers = new ArrayList<>(1);
+
+        // Set by the worker that wrote the chunk, and read once the chunk has been taken from the finished queue
+        private IOException writeFailure;
+
+        public PendingChunk(int chunkNumber, int firstPeer) {
+            this.chunkNumber = chunkNumber;
+            this.triedPeers.add(firstPeer);
+        }
+    }
+
+    /**
+     * Chunks of a file that are requested from the same P2P server in one pipelined round
+     */
+    private static class ChunkBatch {
+        private final int peer;
+        private final String p2pServerIP;
+        private final int p2pServerPort;
+        private final List<PendingChunk> pendingChunks = new ArrayList<>();
+
+        public ChunkBatch(int peer, String p2pServerIP, int p2pServerPort) {
+            this.peer = peer;
+            this.p2pServerIP = p2pServerIP;
+            this.p2pServerPort = p2pServerPort;
+        }
+
+        public void add(PendingChunk pendingChunk) {
+            pendingChunks.add(pendingChunk);
+        }
+
+        public int size() {
+            return pendingChunks.size();
+        }
+    }
+
 }
@@ -1,16 +1,17 @@
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.Arrays;
 import java.util.Scanner;
 
 public class P2PClientPartialTest {
     public static final String TEMP_DIRECTORY = "temp/";
+    public static final int CHUNK_SIZE = 1024;
 
     Socket clientSocket;
 
@@ -46,9 +47,7 @@ public class P2PClientPartialTest {
 
     private void sendExitToOwnServer() throws IOException {
         Socket socketToOwnServer = connectToServer("localhost", Constant.P2P_SERVER_PORT);
-        PrintWriter writerToOwnServer = new PrintWriter(socketToOwnServer.getOutputStream(), true);
-        writerToOwnServer.println(Constant.COMMAND_EXIT);
-        writerToOwnServer.flush();
+        new WireCodec.FrameWriter(Constant.TYPE_EXIT, 0).writeTo(socketToOwnServer.getOutputStream());
 
         socketToOwnServer.close();
     }
@@ -58,34 +57,26 @@ public class P2PClientPartialTest {
     }
 
     private void receiveDataFromP2PServer(BufferedOutputStream bos, Socket socketToP2PServer) throws IOException {
-        byte[] buffer = new byte[1024];
-        int bytesRead = socketToP2PServer.getInputStream().read(buffer);
-
-        if (bytesRead == Constant.CHUNK_SIZE) {
-            bos.write(buffer);
-        } else { //it is the case for the last packet
-            byte[] subBuffer = Arrays.copyOfRange(buffer, 0, bytesRead);
-            bos.write(subBuffer);
-        }
+        DataInputStream input = new DataInputStream(socketToP2PServer.getInputStream());
+        byte[] buffer = WireCodec.readFrame(input).getRemainingBytes(); // replies are chunk frames
 
+        bos.write(buffer);
         bos.flush();
     }
 
     private void sendQueryToP2PServer(String fileName, int chunkNumber, Socket socketToP2PServer) throws IOException {
 
-        PrintWriter writerToP2PServer = new PrintWriter(socketToP2PServer.getOutputStream(), true);
-
-        String toP2PServer = Constant.COMMAND_QUERY + Constant.MESSAGE_DELIMITER
-                + fileName + Constant.MESSAGE_DELIMITER
-                + chunkNumber + Constant.MESSAGE_DELIMITER;
-        writerToP2PServer.println(toP2PServer);
-        writerToP2PServer.flush();
+        new WireCodec.FrameWriter(Constant.TYPE_CHUNK_REQUEST)
+                .putString(fileName)
+                .putInt(chunkNumber)
+                .putInt(CHUNK_SIZE)
+                .writeTo(socketToP2PServer.getOutputStream());
     }
 
     private int getNumberOfChunks(String fileName) throws IOException {
 
         BufferedReader br = new BufferedReader(new FileReader(fileName));
-        char[] buffer = new char[1024];
+        char[] buffer = new char[CHUNK_SIZE];
 
         int chunkCount = 0;
         while (br.read(buffer) != -1) {
@@ -116,27 +107,12 @@ public class P2PClientPartialTest {
 
     }
 
-    private void askIpconfigToOwnServer() throws IOException {
-        Socket socketToOwnServer = connectToServer("localhost", Constant.P2P_SERVER_PORT);
-        PrintWriter writerToOwnServer = new PrintWriter(socketToOwnServer.getOutputStream(), true);
-        writerToOwnServer.println(Constant.COMMAND_IPCONFIG);
-        writerToOwnServer.flush();
-
-        Scanner scFromOwnServer = new Scanner(socketToOwnServer.getInputStream());
-        String response = scFromOwnServer.nextLine();
-        System.out.println(response);
-
-        scFromOwnServer.close();
-        socketToOwnServer.close();
-    }
-
     public static void main(String[] args) {
         //new File(TEMP_DIRECTORY).mkdirs();
 
         try {
             P2PClientPartialTest client = new P2PClientPartialTest();
             client.start("localhost", 9200); //the value here will not be used
-            client.askIpconfigToOwnServer();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -1,67 +1,267 @@
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class P2PTransientServer {
 
+    private ServerSocketChannel welcomeSocket;
+    private volatile boolean isRunning = true;
+
+    // Serve the clients that have sent a request. Clients waiting for their next request are parked
+    // on the idle selector instead, so that kept-alive connections do not hold an upload worker.
+    private ExecutorService uploadWorkers;
+    private IdleClients idleClients;
+
+    // One per open client connection, so that too many clients wait in the accept backlog
+    private Semaphore connectionSlots;
+
+    // Where the files served are, ending with a separator
+    private final String directory;
+
+    // Files being served stay open across requests, keyed by file name
+    private final ConcurrentHashMap<String, ServedFile> openFiles = new ConcurrentHashMap<>();
+
+    // Chunks of hot files, so that peers pulling the same chunks are served from memory
+    private final ChunkCache chunkCache;
+
+    // Deflated forms of hot chunks, so that downloaders taking them deflated do not cost a deflate every time
+    private final ChunkCache deflatedChunkCache;
+
+    // Reported to the STATS command of the local client
+    private final Metrics metrics = new Metrics();
+    private final LongAdder chunkRequests = metrics.counter("requests.chunk");
+    private final LongAdder chunksNotHeld = metrics.counter("chunks.not_held");
+    private final LongAdder bytesServed = metrics.counter("bytes.served");
+    private final LongAdder chunksDeflated = metrics.counter("chunks.deflated");
+    private final LongAdder chunksNotDeflated = metrics.counter("chunks.not_deflated");
+    private final LongAdder bytesSavedByDeflate = metrics.counter("bytes.saved_by_deflate");
+    private final Metrics.LatencyHistogram chunkServeLatency = metrics.histogram("chunk.serve.latency");
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger activeUploads = new AtomicInteger();
+
+    /**
+     * Constructor
+     * @param directory Where the files served are, ending with a separator
+     * @param chunkCacheBytes The most chunk bytes kept in memory
+     */
+    public P2PTransientServer(String directory, long chunkCacheBytes) {
+        this.directory = directory;
+        this.chunkCache = new ChunkCache(chunkCacheBytes);
+        this.deflatedChunkCache = new ChunkCache(chunkCacheBytes / Constant.DEFLATED_CHUNK_CACHE_DIVISOR);
+        metrics.gauge("connections.active", activeConnections::get);
+        metrics.gauge("uploads.active", activeUploads::get);
+        metrics.gauge("files.open", openFiles::size);
+        metrics.gauge("cache.hits", chunkCache::getHits);
+        metrics.gauge("cache.misses", chunkCache::getMisses);
+        metrics.gauge("cache.bytes", chunkCache::getCachedBytes);
+        metrics.gauge("deflated_cache.hits", deflatedChunkCache::getHits);
+        metrics.gauge("deflated_cache.misses", deflatedChunkCache::getMisses);
+        metrics.gauge("deflated_cache.bytes", deflatedChunkCache::getCachedBytes);
+    }
+
     public static void main(String[] args) {
-        new File(Constant.DEFAULT_DIRECTORY).mkdirs();
+        int port = Constant.P2P_SERVER_PORT;
+        String directory = Constant.DEFAULT_DIRECTORY;
 
-        int port = Constant.P2P_SERVER_PORT; // fixed port number
+        int maxConcurrentUploads = Constant.DEFAULT_MAX_CONCURRENT_UPLOADS;
+        if (args.length >= 1) {
+            maxConcurrentUploads = Integer.parseInt(args[0]);
+        }
 
-        P2PTransientServer serverInstance = new P2PTransientServer();
-        serverInstance.start(port);
+        long chunkCacheBytes = Constant.DEFAULT_CHUNK_CACHE_BYTES;
+        if (args.length >= 2) {
+            chunkCacheBytes = Long.parseLong(args[1]) * 1024 * 1024;
+        }
+
+        // Several peers on one machine each need a port and a directory of their own
+        if (args.length >= 3) {
+            port = Integer.parseInt(args[2]);
+        }
+        if (args.length >= 4) {
+            directory = args[3].endsWith("/") ? args[3] : args[3] + "/";
+        }
+        new File(directory).mkdirs();
+
+        P2PTransientServer serverInstance = new P2PTransientServer(directory, chunkCacheBytes);
+        serverInstance.start(port, maxConcurrentUploads);
         System.out.println("P2P transient server closed. Goodbye!");
     }
 
-    private void start(int port) {
+    /**
+     * Accepts connections and serves their requests on a bounded pool of upload workers. A connection only
+     * takes a worker while it has a request to answer, and is parked on the idle selector in between.
+     * @param  port The port to listen on
+     * @param  maxConcurrentUploads The maximum number of clients served at the same time
+     */
+    void start(int port, int maxConcurrentUploads) {
 
-        boolean flag = true;
+        uploadWorkers = Executors.newFixedThreadPool(maxConcurrentUploads);
+        connectionSlots = new Semaphore(Constant.P2P_SERVER_MAX_CONNECTIONS);
 
         try{
-            ServerSocket welcomeSocket = new ServerSocket (port);
-            System.out.println("P2P transient server running on port 9019...");
+            idleClients = new IdleClients();
+            Thread idleThread = new Thread(idleClients, "p2p-idle-" + port);
+            idleThread.setDaemon(true);
+            idleThread.start();
+
+            welcomeSocket = ServerSocketChannel.open();
+            welcomeSocket.bind(new InetSocketAddress(port));
+            System.out.println("P2P transient server running on port " + port
+                    + " with up to " + maxConcurrentUploads + " concurrent uploads...");
+
+            while (isRunning) {
+                // Stop accepting while too many connections are open, so the backlog waits in the kernel
+                connectionSlots.acquire();
 
-            while (flag) {
-                Socket connectionSocket = welcomeSocket.accept();
-                flag = handleClientSocket(connectionSocket);
+                SocketChannel connectionSocket;
+                try {
+                    connectionSocket = welcomeSocket.accept();
+                } catch (ClosedChannelException cce) {
+                    connectionSlots.release();
+                    if (!isRunning) { // welcome socket closed by an EXIT command
+                        break;
+                    }
+                    throw cce;
+                }
+
+                activeConnections.incrementAndGet();
+                try {
+                    idleClients.park(new Client(connectionSocket));
+                } catch (IOException ioe) {
+                    System.out.println(ioe.getMessage());
+                    closeClient(connectionSocket);
+                }
             }
 
         } catch (IOException ioe) {
             System.out.println(ioe.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            uploadWorkers.shutdown();
+            awaitUploads();
+            closeOpenFiles();
+            System.out.println(chunkCache);
         }
     }
 
     /**
-     * Handles requests sent by a client
-     * @param  client Socket that handles the client connection
-     * @return a boolean that shows whether we want to close this server.
+     * Waits up to Constant.P2P_SERVER_STOP_GRACE_MS for the uploads in progress, which read from the open files
      */
-    private boolean handleClientSocket(Socket client) {
-        InputStreamReader isr;
-        BufferedReader br;
-        String msgType;
+    private void awaitUploads() {
+        try {
+            if (!uploadWorkers.awaitTermination(Constant.P2P_SERVER_STOP_GRACE_MS, TimeUnit.MILLISECONDS)) {
+                System.out.println("Stopping with uploads still in progress");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting new clients and closes the idle ones. Uploads already in progress are given up to
+     * Constant.P2P_SERVER_STOP_GRACE_MS to finish before the files they read from are closed.
+     */
+    void stop() {
+        isRunning = false;
+        try {
+            welcomeSocket.close();
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+        }
+        if (idleClients != null) {
+            idleClients.wakeup();
+        }
+    }
+
+    /**
+     * Answers the requests a client has sent on an upload worker, then parks the client until its next request
+     * arrives, unless the connection is done with
+     */
+    private void serveClient(Client client) {
+        boolean isParking = false;
+        activeUploads.incrementAndGet();
+        try {
+            isParking = handleClientSocket(client);
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+        } finally {
+            activeUploads.decrementAndGet();
+        }
+
+        if (isParking && isRunning) {
+            try {
+                idleClients.park(client);
+                return;
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            }
+        }
+        closeClient(client.channel);
+    }
+
+    private void closeClient(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+        }
+        activeConnections.decrementAndGet();
+        connectionSlots.release();
+    }
+
+    /**
+     * Handles the requests a client has sent so far. The connection is kept open so that a client can send
+     * many queries over it, and may send the next query before the previous reply arrives.
+     * Requests are read until none is waiting, so that the worker is not held while the client is idle.
+     * @param  client The client connection, in blocking mode
+     * @return whether to park the connection until the client's next request, rather than close it
+     */
+    private boolean handleClientSocket(Client client) throws IOException {
+        DataInputStream input = client.input;
+        WireCodec.Frame message;
         String fileName;
-        String chunkNumString;
         int chunkNum;
-        int flag = 0;
+        int chunkSize;
 
-        try {
-            isr = new InputStreamReader(client.getInputStream());
-            br = new BufferedReader(isr);
-            msgType = br.readLine();
+        do {
+            try {
+                message = WireCodec.readFrame(input);
+            } catch (EOFException eofe) { // the client closed the connection
+                return false;
+            }
 
-            if (msgType.equals(Constant.COMMAND_EXIT)) { // it is an EXIT command
-                byte[] buffer = Constant.MESSAGE_ACK.getBytes();
-                sendP2PResponse(client, buffer);
-                flag = 1;
+            if (message.getType() == Constant.TYPE_EXIT) { // it is an EXIT command
+                writeFully(client.channel, new WireCodec.FrameWriter(Constant.TYPE_ACK, 0).finish());
+                stop();
+                return false;
 
             }
             // This command is disabled due to symmetric network
@@ -77,114 +277,498 @@ public class P2PTransientServer {
             //         System.out.println("cannot contact STUN server");
             //     }
             // }
-            else if (msgType.equals(Constant.COMMAND_QUERY)) { // it is a download request
-                fileName = br.readLine();
-                chunkNumString = br.readLine();
-                chunkNum = Integer.parseInt(chunkNumString);
+            else if (message.getType() == Constant.TYPE_CHUNK_REQUEST) { // it is a download request
+                fileName = message.getString();
+                chunkNum = message.getInt();
+                chunkSize = message.getInt();
+                // Older downloaders end the request here, and only take chunks as they are
+                boolean acceptsDeflate = message.hasRemaining()
+                        && (message.getInt() & Constant.CHUNK_ACCEPTS_DEFLATE) != 0;
 
-                sendP2PResponse(client, formP2PResponse(fileName, chunkNum));
+                long startTime = System.nanoTime();
+                chunkRequests.increment();
+                sendP2PResponse(client.channel, fileName, chunkNum, chunkSize, acceptsDeflate);
+                chunkServeLatency.recordSince(startTime);
 
-            } else { // it is an invalid query
+            } else if (message.getType() == Constant.TYPE_STATS) {
+                byte[] text = metrics.report().getBytes(StandardCharsets.UTF_8);
+                writeFully(client.channel, new WireCodec.FrameWriter(Constant.TYPE_STATS_REPLY, text.length)
+                        .putBytes(text).finish());
 
+            } else { // it is an invalid query
+                return false;
             }
+        } while (input.available() > 0);
 
-        } catch (IOException ioe) {
-            System.out.println(ioe.getMessage());
-            if (flag==1) {
-                return false;
+        return true;
+    }
+
+    /**
+     * Sends a chunk back to the client as a chunk frame, whose header tells the client
+     * where the chunk ends on a kept-alive connection. The chunk goes from the file to the socket
+     * with FileChannel.transferTo, without being copied through a user-space buffer, unless it is
+     * hot enough to be kept in the chunk cache.
+     * A chunk this server does not hold, such as one a partial download has not written yet,
+     * is answered with a "not held" frame instead.
+     * A client that accepts deflated chunks gets the chunk deflated if that makes it noticeably smaller.
+     * @param  client Socket that handles the client connection
+     * @param  fileName The name of file being requested
+     * @param  chunkNum The chunk number of the file
+     * @param  chunkSize The chunk size the directory server holds for the file
+     * @param  acceptsDeflate Whether the client can inflate a deflated chunk
+     */
+    private void sendP2PResponse(SocketChannel client, String fileName, int chunkNum, int chunkSize,
+                                 boolean acceptsDeflate) throws IOException {
+        ServedFile file = getOpenFile(fileName);
+
+        int length = -1;
+        if (file != null && chunkNum >= 1 && chunkSize >= 1 && chunkSize <= Constant.MAX_CHUNK_SIZE) {
+            length = file.getChunkLength(chunkNum, chunkSize);
+        }
+
+        if (length < 0) {
+            chunksNotHeld.increment();
+            writeFully(client, new WireCodec.FrameWriter(Constant.TYPE_CHUNK_NOT_HELD, 0).finish());
+            return;
+        }
+        bytesServed.add(length);
+
+        // The chunk as it is, once taken from the cache or read to be deflated, so that it is not fetched twice
+        ByteBuffer chunk = null;
+        boolean isChunkCached = false;
+
+        if (acceptsDeflate && file.isWorthDeflating()) {
+            ByteBuffer deflatedChunk = deflatedChunkCache.get(fileName, chunkNum, chunkSize);
+            if (deflatedChunk != null) {
+                chunksDeflated.increment();
             } else {
-                return true;
+                chunk = getCachedChunk(fileName, chunkNum, chunkSize, length);
+                isChunkCached = chunk != null;
+                if (!isChunkCached) {
+                    chunk = readChunk(file, fileName, chunkNum, chunkSize, length);
+                }
+                deflatedChunk = deflateChunk(file, fileName, chunkNum, chunkSize, chunk);
+            }
+            if (deflatedChunk != null) {
+                int deflatedLength = deflatedChunk.remaining();
+                bytesSavedByDeflate.add(length - deflatedLength);
+                // The payload is the length of the chunk once inflated, then the deflated chunk
+                ByteBuffer header = ByteBuffer.allocate(WireCodec.HEADER_SIZE + Integer.BYTES)
+                        .put(WireCodec.encodeHeader(Constant.TYPE_CHUNK_DEFLATED, Integer.BYTES + deflatedLength))
+                        .putInt(length);
+                header.flip();
+                writeFully(client, header);
+                writeFully(client, deflatedChunk);
+                return;
             }
         }
 
-        try {
-            client.close();
-            if (flag==1) {
-                return false;
-            } else {
-                return true;
+        writeFully(client, WireCodec.encodeHeader(Constant.TYPE_CHUNK, length));
+
+        if (chunk == null) {
+            chunk = getCachedChunk(fileName, chunkNum, chunkSize, length);
+            isChunkCached = chunk != null;
+        }
+        if (isChunkCached) {
+            writeFully(client, chunk);
+            return;
+        }
+
+        if (chunkCache.shouldAdmit(fileName, chunkNum, chunkSize, length)) {
+            if (chunk == null) {
+                chunk = readChunk(file, fileName, chunkNum, chunkSize, length);
             }
+            chunkCache.put(fileName, chunkNum, chunkSize, chunk.asReadOnlyBuffer());
+            writeFully(client, chunk);
+            return;
+        }
+        // A chunk read only to be deflated is sent from memory rather than read from the file again
+        if (chunk != null) {
+            writeFully(client, chunk);
+            return;
+        }
 
-        } catch (IOException ioe) {
-            System.out.println(ioe.getMessage());
-            if (flag==1) {
-                return false;
-            } else {
-                return true;
+        long position = (long) chunkSize * (chunkNum - 1);
+        long bytesSent = 0;
+        while (bytesSent < length) {
+            long transferred = file.channel.transferTo(position + bytesSent, length - bytesSent, client);
+            // transferTo sends nothing past the end of the file, so a file truncated while open would spin forever.
+            // The header is already out, so the frame cannot be finished and the connection has to go.
+            if (transferred == 0 && position + bytesSent >= file.channel.size()) {
+                throw new IOException("File " + fileName + " shrank while chunk " + chunkNum + " was sent");
             }
+            bytesSent += transferred;
         }
     }
 
     /**
-     * Sends a response back to the client
-     * @param  client Socket that handles the client connection
-     * @param  response The response to be sent to the client
+     * @return the chunk ready to be written from the chunk cache, or null if it is not cached at its current length
      */
-    private void sendP2PResponse(Socket client, byte[] response) {
-	  try {
-          DataOutputStream output = new DataOutputStream(client.getOutputStream());
-          output.write(response);
-          output.flush();
-          output.close();
-      } catch (IOException ioe) {
-          System.out.println(ioe.getMessage());
-      }
+    private ByteBuffer getCachedChunk(String fileName, int chunkNum, int chunkSize, int length) {
+        ByteBuffer cachedChunk = chunkCache.get(fileName, chunkNum, chunkSize);
+        return cachedChunk != null && cachedChunk.remaining() == length ? cachedChunk : null;
     }
 
     /**
-     * Form a response to a P2PRequest
+     * Deflates a chunk and keeps it in the cache of deflated chunks if it is asked for often. The file stops
+     * being tried once several chunks in a row have not deflated well enough.
+     * @param  chunk The chunk as it is, which is left unchanged so that it can still be sent as it is
+     * @return the deflated chunk ready to be written, or null if the chunk is better sent as it is
+     */
+    private ByteBuffer deflateChunk(ServedFile file, String fileName, int chunkNum, int chunkSize, ByteBuffer chunk) {
+        ByteBuffer deflatedChunk = ChunkCompressor.deflate(chunk);
+        file.recordDeflate(deflatedChunk != null);
+        if (deflatedChunk == null) {
+            chunksNotDeflated.increment();
+            return null;
+        }
+
+        chunksDeflated.increment();
+        if (deflatedChunkCache.shouldAdmit(fileName, chunkNum, chunkSize, deflatedChunk.remaining())) {
+            deflatedChunkCache.put(fileName, chunkNum, chunkSize, deflatedChunk.asReadOnlyBuffer());
+        }
+        return deflatedChunk;
+    }
+
+    private ByteBuffer readChunk(ServedFile file, String fileName, int chunkNum, int chunkSize, int length)
+            throws IOException {
+        long position = (long) chunkSize * (chunkNum - 1);
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+        while (chunk.hasRemaining()) {
+            if (file.channel.read(chunk, position + chunk.position()) == -1) {
+                throw new IOException("File " + fileName + " shrank while chunk " + chunkNum + " was read");
+            }
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    private void writeFully(SocketChannel client, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    /**
+     * Returns a file in the served directory, opening it on first use
      * @param  fileName The name of file being requested
-     * @param  chunkNum The chunk number of the file
-     * @return a byte[] that contains the data to be sent to the client
+     * @return the file, or null if the file cannot be opened
      */
-    private byte[] formP2PResponse(String fileName, int chunkNum) {
-        int bytesRead; //number of bytes read
+    private ServedFile getOpenFile(String fileName) {
+        ServedFile file = openFiles.get(fileName);
+        if (file != null && file.channel.isOpen()) {
+            if (!file.isChanged()) {
+                return file;
+            }
+            // The file was replaced or modified, so neither its channel nor its cached chunks can be trusted
+            System.out.println("File " + fileName + " changed on disk, reopening it");
+            chunkCache.invalidate(fileName);
+            deflatedChunkCache.invalidate(fileName);
+            try {
+                file.channel.close();
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            }
+        }
 
-        try{
-            String directoryPath = Constant.DEFAULT_DIRECTORY;
-
-            RandomAccessFile file = new RandomAccessFile(directoryPath + fileName, "r");
-            file.seek(Constant.CHUNK_SIZE*(chunkNum-1)); //move the pointer to the position where we start reading
-            byte[] buffer = new byte[Constant.CHUNK_SIZE];
-            bytesRead = file.read(buffer);
-
-            String value = new String(buffer, "UTF-8");
-            System.out.println("value:" + value+ "\n");
-            
-            file.close();
-
-            if (bytesRead == Constant.CHUNK_SIZE) {
-                return buffer;
-            } else { //it is the case for the last packet
-                byte[] subBuffer = Arrays.copyOfRange(buffer, 0, bytesRead);
-                System.out.println("length:"+subBuffer.length + "\n");
-                return subBuffer;
-            }
-
-        } catch (FileNotFoundException fnfe) { // we assume this will not happen
-            System.out.println(fnfe.getMessage());
-            byte[] buffer = new byte[Constant.CHUNK_SIZE];
-            return buffer;
+        try {
+            ServedFile newFile = openFile(fileName);
+            if (file == null) {
+                file = openFiles.putIfAbsent(fileName, newFile);
+            } else if (openFiles.replace(fileName, file, newFile)) {
+                file = null;
+            }
+            if (file == null) {
+                return newFile;
+            }
+            newFile.channel.close(); // another upload worker opened it first
+            return getOpenFile(fileName);
+        } catch (NoSuchFileException nsfe) {
+            System.out.println("File not found: " + nsfe.getMessage());
+            return null;
         } catch (IOException ioe) {
             System.out.println(ioe.getMessage());
-            byte[] buffer = new byte[Constant.CHUNK_SIZE];
-            return buffer;
+            return null;
+        }
+    }
+
+    /**
+     * Opens a file in the served directory, or the part file of it if it is still being downloaded.
+     * A part file keeps its channel valid when it is renamed to the real name of the file.
+     */
+    private ServedFile openFile(String fileName) throws IOException {
+        try {
+            return new ServedFile(directory, fileName,
+                    FileChannel.open(Paths.get(directory + fileName), StandardOpenOption.READ), true);
+        } catch (NoSuchFileException nsfe) {
+            return new ServedFile(directory, fileName,
+                    FileChannel.open(DownloadManifest.getPartPath(directory, fileName), StandardOpenOption.READ), false);
+        }
+    }
+
+    private void closeOpenFiles() {
+        for (ServedFile file : openFiles.values()) {
+            try {
+                file.channel.close();
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            }
+        }
+        openFiles.clear();
+    }
+
+    /**
+     * A client connection and the stream its requests are read from, which may hold requests read ahead
+     */
+    private static class Client {
+        private final SocketChannel channel;
+        private final DataInputStream input;
+        private long parkedMillis;
+
+        public Client(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            // Drop downloaders that stall in the middle of a request instead of holding an upload worker forever
+            channel.socket().setSoTimeout(Constant.P2P_SERVER_CLIENT_TIMEOUT_MS);
+            // Chunk headers are tiny writes followed by the chunk itself, so do not let Nagle hold them back
+            channel.socket().setTcpNoDelay(true);
+            this.input = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
         }
     }
 
+    /**
+     * Waits on one selector for the next request of every client that is not being served, and hands each
+     * client whose request arrives to an upload worker. Clients idle for longer than
+     * Constant.P2P_SERVER_CLIENT_TIMEOUT_MS are closed.
+     */
+    private class IdleClients implements Runnable {
+        private final Selector selector;
+        private final Queue<Client> newlyIdleClients = new ConcurrentLinkedQueue<>();
+
+        public IdleClients() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Called from the accepting thread and the upload workers
+         */
+        public void park(Client client) throws IOException {
+            client.parkedMillis = System.currentTimeMillis();
+            client.channel.configureBlocking(false);
+            newlyIdleClients.add(client);
+            selector.wakeup();
+        }
+
+        public void wakeup() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning) {
+                    selector.select(Constant.P2P_SERVER_CLIENT_TIMEOUT_MS / 2);
+                    registerNewlyIdleClients();
+
+                    while (!selector.selectedKeys().isEmpty()) {
+                        List<Client> readyClients = new ArrayList<>();
+                        for (SelectionKey key : selector.selectedKeys()) {
+                            key.cancel();
+                            readyClients.add((Client) key.attachment());
+                        }
+                        selector.selectedKeys().clear();
+                        // Deregisters the cancelled keys, which their channels need before they can block again
+                        selector.selectNow();
+
+                        for (Client client : readyClients) {
+                            serveWhenWorkerIsFree(client);
+                        }
+                    }
+                    closeExpiredClients();
+                }
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerNewlyIdleClients() {
+            Client client;
+            while ((client = newlyIdleClients.poll()) != null) {
+                try {
+                    client.channel.register(selector, SelectionKey.OP_READ, client);
+                } catch (IOException ioe) {
+                    System.out.println(ioe.getMessage());
+                    closeClient(client.channel);
+                }
+            }
+        }
+
+        private void serveWhenWorkerIsFree(Client client) {
+            try {
+                client.channel.configureBlocking(true);
+                uploadWorkers.execute(() -> serveClient(client));
+            } catch (IOException | RuntimeException e) { // the server is stopping
+                System.out.println(e.getMessage());
+                closeClient(client.channel);
+            }
+        }
+
+        private void closeExpiredClients() {
+            long expiredBefore = System.currentTimeMillis() - Constant.P2P_SERVER_CLIENT_TIMEOUT_MS;
+            for (SelectionKey key : selector.keys()) {
+                Client client = (Client) key.attachment();
+                if (key.isValid() && client.parkedMillis < expiredBefore) {
+                    key.cancel();
+                    closeClient(client.channel);
+                }
+            }
+        }
+
+        private void closeAll() {
+            registerNewlyIdleClients();
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    key.cancel();
+                    closeClient(((Client) key.attachment()).channel);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            }
+        }
+    }
 
     /**
-     * Concatenates 2 byte[] into a single byte[]
-     * This is a function provided for your convenience.
-     * @param  buffer1 a byte array
-     * @param  buffer2 another byte array
-     * @return concatenation of the 2 buffers
+     * An open file and the chunks of it this server holds. A whole file holds every chunk in it.
+     * A part file holds the chunks its download manifest lists, and the manifest is read again
+     * whenever a chunk it does not list is asked for and it has changed on disk since.
      */
-    private byte[] concatenate(byte[] buffer1, byte[] buffer2) {
-        byte[] returnBuffer = new byte[buffer1.length + buffer2.length];
-        System.arraycopy(buffer1, 0, returnBuffer, 0, buffer1.length);
-        System.arraycopy(buffer2, 0, returnBuffer, buffer1.length, buffer2.length);
-        return returnBuffer;
+    private static class ServedFile {
+        private final String directory;
+        private final String fileName;
+        private final FileChannel channel;
+
+        private volatile boolean isWhole;
+        private volatile DownloadManifest manifest;
+        private FileTime manifestModifiedTime;
+
+        // Whether chunks are tried deflated at all. The count of chunks in a row that did not deflate well enough
+        // is updated without a lock, since losing an update only delays skipping the file by a chunk.
+        private final boolean isCompressibleType;
+        private volatile int undeflatedChunksInARow;
+
+        // What a whole file looked like when it was opened, to notice it being changed
+        private long openedSize;
+        private FileTime openedModifiedTime;
+        private volatile long lastCheckedMillis;
+
+        public ServedFile(String directory, String fileName, FileChannel channel, boolean isWhole) throws IOException {
+            this.directory = directory;
+            this.fileName = fileName;
+            this.channel = channel;
+            this.isWhole = isWhole;
+            this.isCompressibleType = ChunkCompressor.isCompressibleType(fileName);
+            if (isWhole) {
+                recordOpenedState();
+            }
+        }
+
+        private void recordOpenedState() throws IOException {
+            openedSize = channel.size();
+            openedModifiedTime = Files.getLastModifiedTime(Paths.get(directory + fileName));
+            lastCheckedMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Checks, at most once per Constant.SERVED_FILE_CHECK_INTERVAL_MS, whether a whole file has been
+         * replaced or modified since it was opened. The held chunks of a part file never change.
+         */
+        public boolean isChanged() {
+            long now = System.currentTimeMillis();
+            if (!isWhole || now - lastCheckedMillis < Constant.SERVED_FILE_CHECK_INTERVAL_MS) {
+                return false;
+            }
+
+            synchronized (this) {
+                if (now - lastCheckedMillis < Constant.SERVED_FILE_CHECK_INTERVAL_MS) {
+                    return false;
+                }
+                lastCheckedMillis = now;
+                if (openedModifiedTime == null) { // was a part file when it was opened
+                    try {
+                        recordOpenedState();
+                    } catch (IOException ioe) {
+                        return true;
+                    }
+                    return false;
+                }
+                try {
+                    return channel.size() != openedSize
+                            || !Files.getLastModifiedTime(Paths.get(directory + fileName))
+                                    .equals(openedModifiedTime);
+                } catch (IOException ioe) { // the file is gone
+                    return true;
+                }
+            }
+        }
+
+        public boolean isWorthDeflating() {
+            return isCompressibleType && undeflatedChunksInARow < Constant.INCOMPRESSIBLE_CHUNKS_BEFORE_SKIPPING_FILE;
+        }
+
+        public void recordDeflate(boolean isDeflated) {
+            undeflatedChunksInARow = isDeflated ? 0 : undeflatedChunksInARow + 1;
+        }
+
+        /**
+         * @return the number of bytes in the chunk, or -1 if this server does not hold it
+         */
+        public int getChunkLength(int chunkNum, int chunkSize) throws IOException {
+            if (!isWhole && !isInManifest(chunkNum, chunkSize)) {
+                refreshManifest();
+                if (!isWhole && !isInManifest(chunkNum, chunkSize)) {
+                    return -1;
+                }
+            }
+
+            long position = (long) chunkSize * (chunkNum - 1);
+            long length = Math.min(chunkSize, channel.size() - position);
+            return length > 0 ? (int) length : -1;
+        }
+
+        private boolean isInManifest(int chunkNum, int chunkSize) {
+            DownloadManifest currentManifest = manifest;
+            return currentManifest != null && currentManifest.getChunkSize() == chunkSize
+                    && chunkNum <= currentManifest.getChunkCount() && currentManifest.isHeld(chunkNum);
+        }
+
+        private synchronized void refreshManifest() {
+            if (isWhole) {
+                return;
+            }
+
+            // The download finished and renamed the part file, which is the file this channel reads
+            if (Files.exists(Paths.get(directory + fileName))) {
+                isWhole = true;
+                manifest = null;
+                return;
+            }
+
+            try {
+                FileTime modifiedTime = Files.getLastModifiedTime(DownloadManifest.getManifestPath(directory, fileName));
+                if (!modifiedTime.equals(manifestModifiedTime)) {
+                    manifestModifiedTime = modifiedTime;
+                    manifest = DownloadManifest.read(directory, fileName);
+                }
+            } catch (NoSuchFileException nsfe) {
+                // no chunk of the download has been saved yet
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            }
+        }
     }
 
 }
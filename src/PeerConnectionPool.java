@@ -0,0 +1,172 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps idle connections to P2P servers open so that many chunk requests can share one connection.
+ * Connections are handed out to one download worker at a time and returned once its requests are answered.
+ */
+public class PeerConnectionPool {
+
+    private final ConcurrentHashMap<String, Queue<PeerConnection>> idleConnections = new ConcurrentHashMap<>();
+
+    // Whether chunk requests offer to take chunks deflated
+    private final boolean acceptsDeflate;
+
+    public PeerConnectionPool() {
+        this(Constant.DEFAULT_CHUNK_COMPRESSION);
+    }
+
+    public PeerConnectionPool(boolean acceptsDeflate) {
+        this.acceptsDeflate = acceptsDeflate;
+    }
+
+    /**
+     * Takes an idle connection to the given P2P server, or opens a new one if there is none
+     * @param  p2pServerIP IP address of the P2P server
+     * @param  p2pServerPort port number of the P2P server
+     * @return a connection that only the caller uses until it is released
+     */
+    public PeerConnection borrow(String p2pServerIP, int p2pServerPort) throws IOException {
+        Queue<PeerConnection> connectionsToPeer = idleConnections.get(toPeerKey(p2pServerIP, p2pServerPort));
+
+        if (connectionsToPeer != null) {
+            PeerConnection connection;
+            while ((connection = connectionsToPeer.poll()) != null) {
+                if (!connection.isExpired()) {
+                    return connection;
+                }
+                // The P2P server may already have timed this connection out
+                connection.close();
+            }
+        }
+
+        return new PeerConnection(p2pServerIP, p2pServerPort, acceptsDeflate);
+    }
+
+    /**
+     * Returns a healthy connection to the pool so that later requests to the same peer can reuse it
+     */
+    public void release(PeerConnection connection) {
+        Queue<PeerConnection> connectionsToPeer = idleConnections.computeIfAbsent(connection.getPeerKey(),
+                key -> new ConcurrentLinkedQueue<>());
+
+        if (connectionsToPeer.size() >= Constant.MAX_IDLE_CONNECTIONS_PER_PEER) {
+            connection.close();
+        } else {
+            connection.markUsed();
+            connectionsToPeer.offer(connection);
+        }
+    }
+
+    public void closeAll() {
+        for (Queue<PeerConnection> connectionsToPeer : idleConnections.values()) {
+            PeerConnection connection;
+            while ((connection = connectionsToPeer.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static String toPeerKey(String p2pServerIP, int p2pServerPort) {
+        return p2pServerIP + ":" + p2pServerPort;
+    }
+
+    /**
+     * A keep-alive connection to a P2P server. Queries can be pipelined: several of them are sent
+     * before the first reply is read, and the replies come back in the same order.
+     */
+    public static class PeerConnection {
+
+        private final String peerKey;
+        private final Socket socket;
+        private final BufferedOutputStream writer;
+        private final DataInputStream reader;
+        private final boolean acceptsDeflate;
+        private long lastUsedMillis;
+
+        // How long the TCP handshake took, which is one round trip to the peer
+        private double connectMillis;
+
+        private PeerConnection(String p2pServerIP, int p2pServerPort, boolean acceptsDeflate) throws IOException {
+            this.peerKey = toPeerKey(p2pServerIP, p2pServerPort);
+            this.acceptsDeflate = acceptsDeflate;
+            long connectStart = System.nanoTime();
+            this.socket = new Socket(p2pServerIP, p2pServerPort);
+            this.connectMillis = (System.nanoTime() - connectStart) / 1e6;
+            this.socket.setTcpNoDelay(true);
+            this.writer = new BufferedOutputStream(socket.getOutputStream());
+            this.reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.lastUsedMillis = System.currentTimeMillis();
+        }
+
+        public String getPeerKey() {
+            return peerKey;
+        }
+
+        /**
+         * @return how long it took to open this connection, or 0 if that was already taken by an earlier call
+         */
+        public double takeConnectMillis() {
+            double millis = connectMillis;
+            connectMillis = 0;
+            return millis;
+        }
+
+        /**
+         * Queues a chunk request. Nothing is sent until {@link #flush()} is called.
+         */
+        public void sendQuery(String fileName, int chunkNumber, int chunkSize) throws IOException {
+            new WireCodec.FrameWriter(Constant.TYPE_CHUNK_REQUEST)
+                    .putString(fileName)
+                    .putInt(chunkNumber)
+                    .putInt(chunkSize)
+                    .putInt(acceptsDeflate ? Constant.CHUNK_ACCEPTS_DEFLATE : 0)
+                    .writeTo(writer);
+        }
+
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        /**
+         * Reads the reply to the oldest query that has not been answered yet, inflating the chunk if it was sent deflated
+         * @return the chunk data, or null if the P2P server does not hold the chunk
+         */
+        public byte[] receiveChunk() throws IOException {
+            WireCodec.Frame reply = WireCodec.readFrame(reader);
+            if (reply.getType() == Constant.TYPE_CHUNK_NOT_HELD) {
+                return null;
+            }
+            if (reply.getType() == Constant.TYPE_CHUNK_DEFLATED) {
+                int length = reply.getInt();
+                return ChunkCompressor.inflate(reply.getRemainingBytes(), length);
+            }
+            if (reply.getType() != Constant.TYPE_CHUNK) {
+                throw new IOException("Unexpected reply of type " + reply.getType() + " from " + peerKey);
+            }
+            return reply.getRemainingBytes();
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - lastUsedMillis > Constant.PEER_CONNECTION_IDLE_TIMEOUT_MS;
+        }
+
+        private void markUsed() {
+            lastUsedMillis = System.currentTimeMillis();
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            }
+        }
+    }
+}
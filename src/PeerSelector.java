@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A policy for choosing which of the peers that hold a chunk to ask for it, given what PeerStats knows of them.
+ * Used by the directory server to answer QUERY and by downloaders to spread chunks over their holders.
+ */
+public interface PeerSelector {
+
+    String RANDOM = "random";
+    String LEAST_LOADED = "least-loaded";
+    String POWER_OF_TWO_CHOICES = "power-of-two";
+
+    /**
+     * @param candidates The peers to choose from, not empty
+     * @param bytes How much is about to be requested from the chosen peer
+     * @return the chosen peer
+     */
+    int select(List<Integer> candidates, PeerStats stats, int bytes);
+
+    /**
+     * @return the candidates from the one expected to serve the given number of bytes soonest to the one expected last
+     */
+    default List<Integer> rank(List<Integer> candidates, PeerStats stats, int bytes) {
+        List<Integer> ranked = new ArrayList<>(candidates);
+        ranked.sort(Comparator.comparingDouble(peer -> stats.getEstimatedMillis(peer, bytes)));
+        return ranked;
+    }
+
+    /**
+     * @return the policy of the given name, one of RANDOM, LEAST_LOADED and POWER_OF_TWO_CHOICES
+     */
+    static PeerSelector forName(String name) {
+        switch (name) {
+            case RANDOM:
+                return new RandomChoice();
+            case LEAST_LOADED:
+                return new LeastLoaded();
+            case POWER_OF_TWO_CHOICES:
+                return new PowerOfTwoChoices();
+            default:
+                throw new IllegalArgumentException("Unknown peer selector " + name);
+        }
+    }
+
+    /**
+     * Any holder, regardless of what is known of it
+     */
+    class RandomChoice implements PeerSelector {
+        @Override
+        public int select(List<Integer> candidates, PeerStats stats, int bytes) {
+            return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+        }
+    }
+
+    /**
+     * The holder with the fewest outstanding requests, the fastest one among those equally loaded
+     */
+    class LeastLoaded implements PeerSelector {
+        @Override
+        public int select(List<Integer> candidates, PeerStats stats, int bytes) {
+            int best = candidates.get(0);
+            for (int i = 1; i < candidates.size(); i++) {
+                int peer = candidates.get(i);
+                int loadDifference = stats.getLoad(peer) - stats.getLoad(best);
+                if (loadDifference < 0 || (loadDifference == 0
+                        && stats.getEstimatedMillis(peer, bytes) < stats.getEstimatedMillis(best, bytes))) {
+                    best = peer;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * The sooner expected of two holders picked at random. Nearly as good as looking at every holder,
+     * and unlike always taking the best one, it does not send every downloader to the same peer
+     * while their statistics lag behind.
+     */
+    class PowerOfTwoChoices implements PeerSelector {
+        @Override
+        public int select(List<Integer> candidates, PeerStats stats, int bytes) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int firstIndex = random.nextInt(candidates.size());
+            int first = candidates.get(firstIndex);
+            if (candidates.size() == 1) {
+                return first;
+            }
+            // Any other candidate, so the two picks are never the same peer
+            int secondIndex = random.nextInt(candidates.size() - 1);
+            int second = candidates.get(secondIndex >= firstIndex ? secondIndex + 1 : secondIndex);
+            return stats.getEstimatedMillis(second, bytes) < stats.getEstimatedMillis(first, bytes) ? second : first;
+        }
+    }
+}
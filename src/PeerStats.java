@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+ * What is known of how fast each peer serves chunks, for choosing which peer to ask.
+ * Peers are numbered densely from 0, by host id on the directory server and by peer index in a FileChunkMap,
+ * so the statistics are kept in primitive arrays indexed by peer rather than in an object per peer.
+ *
+ * Throughput and round-trip time are moving averages of what was observed. Load is the number of requests
+ * a peer was given that have not been answered yet, or on the directory server, how many downloaders
+ * it was recently pointed at.
+ */
+public class PeerStats {
+
+    // Bytes per millisecond, 0 until the peer has been measured
+    private float[] throughputs = new float[16];
+
+    // Milliseconds, 0 until the peer has been measured
+    private float[] roundTripTimes = new float[16];
+
+    private int[] loads = new int[16];
+
+    // Highest throughput measured of any peer, assumed for peers not measured yet so that they get tried
+    private float bestThroughput = 0;
+
+    /**
+     * Folds a transfer from a peer into its throughput
+     */
+    public synchronized void recordTransfer(int peer, long bytes, double millis) {
+        ensureCapacity(peer);
+        float throughput = (float) (bytes / Math.max(millis, 0.01));
+        throughputs[peer] = average(throughputs[peer], throughput);
+        bestThroughput = Math.max(bestThroughput, throughputs[peer]);
+    }
+
+    /**
+     * Folds a round trip to a peer, such as the time to open a connection, into its round-trip time
+     */
+    public synchronized void recordRoundTrip(int peer, double millis) {
+        ensureCapacity(peer);
+        roundTripTimes[peer] = average(roundTripTimes[peer], (float) millis);
+    }
+
+    /**
+     * Makes a peer that failed to serve a request look slow, so it is chosen less until it proves otherwise
+     */
+    public synchronized void recordFailure(int peer) {
+        ensureCapacity(peer);
+        float throughput = throughputs[peer] > 0 ? throughputs[peer] : bestThroughput;
+        throughputs[peer] = Math.max(throughput / 4, Float.MIN_NORMAL);
+    }
+
+    public synchronized void addLoad(int peer, int delta) {
+        ensureCapacity(peer);
+        loads[peer] = Math.max(0, loads[peer] + delta);
+    }
+
+    /**
+     * Forgets what is known of a peer, such as when its number is about to be given to another peer
+     */
+    public synchronized void forget(int peer) {
+        if (peer < loads.length) {
+            throughputs[peer] = 0;
+            roundTripTimes[peer] = 0;
+            loads[peer] = 0;
+        }
+    }
+
+    /**
+     * Halves every load, so that a load that is counted but never taken off fades away
+     */
+    public synchronized void decayLoads() {
+        for (int peer = 0; peer < loads.length; peer++) {
+            loads[peer] /= 2;
+        }
+    }
+
+    /**
+     * @return the throughput of a peer in bytes per millisecond, or 0 if it has not been measured
+     */
+    public synchronized float getThroughput(int peer) {
+        return peer < throughputs.length ? throughputs[peer] : 0;
+    }
+
+    /**
+     * @return the round-trip time of a peer in milliseconds, or 0 if it has not been measured
+     */
+    public synchronized float getRoundTripTime(int peer) {
+        return peer < roundTripTimes.length ? roundTripTimes[peer] : 0;
+    }
+
+    public synchronized int getLoad(int peer) {
+        return peer < loads.length ? loads[peer] : 0;
+    }
+
+    /**
+     * @return how long the peer should take to send the given number of bytes after the requests
+     * it already has, in milliseconds. Only meant for comparing peers.
+     */
+    public synchronized double getEstimatedMillis(int peer, int bytes) {
+        float throughput = getThroughput(peer);
+        if (throughput == 0) {
+            throughput = bestThroughput > 0 ? bestThroughput : 1;
+        }
+        return getRoundTripTime(peer) + (double) bytes * (getLoad(peer) + 1) / throughput;
+    }
+
+    private static float average(float oldValue, float sample) {
+        if (oldValue == 0) {
+            return sample;
+        }
+        return oldValue + Constant.PEER_STATS_SMOOTHING * (sample - oldValue);
+    }
+
+    private void ensureCapacity(int peer) {
+        if (peer >= throughputs.length) {
+            int capacity = Math.max(peer + 1, throughputs.length * 2);
+            throughputs = Arrays.copyOf(throughputs, capacity);
+            roundTripTimes = Arrays.copyOf(roundTripTimes, capacity);
+            loads = Arrays.copyOf(loads, capacity);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Which directory node owns which file when the directory is split over several nodes, by consistent hashing
+ * of file names. Every node is placed at Constant.SHARD_VIRTUAL_NODES points of a ring of 64-bit hashes, and a
+ * file belongs to the node at the first point at or after the hash of its name. Adding a node therefore only moves
+ * the files that fall just before one of its points, about one in as many files as there are nodes,
+ * and moves them all to the new node.
+ */
+public class ShardMap {
+
+    private final List<Host> nodes;
+
+    // The points of the ring in increasing order, and the index in nodes of the node at each point
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param nodes The directory nodes, each at the address clients and other nodes reach it at
+     */
+    public ShardMap(List<Host> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A shard map needs at least one directory node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+
+        int pointCount = nodes.size() * Constant.SHARD_VIRTUAL_NODES;
+        long[] unsortedPoints = new long[pointCount];
+        for (int node = 0; node < nodes.size(); node++) {
+            Host host = nodes.get(node);
+            for (int i = 0; i < Constant.SHARD_VIRTUAL_NODES; i++) {
+                unsortedPoints[node * Constant.SHARD_VIRTUAL_NODES + i] =
+                        hash(host.getIPAddress() + ":" + host.getPortNumber() + "#" + i);
+            }
+        }
+
+        // Sort the points and carry their owners along, by sorting the point indices
+        Integer[] order = new Integer[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(unsortedPoints[a], unsortedPoints[b]));
+        points = new long[pointCount];
+        owners = new int[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            points[i] = unsortedPoints[order[i]];
+            owners[i] = order[i] / Constant.SHARD_VIRTUAL_NODES;
+        }
+    }
+
+    /**
+     * @param nodeList Directory nodes as host:port, separated by commas
+     */
+    public static ShardMap parse(String nodeList) {
+        List<Host> nodes = new ArrayList<>();
+        for (String node : nodeList.split(",")) {
+            node = node.trim();
+            int colon = node.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Directory node " + node + " is not of the form host:port");
+            }
+            nodes.add(new Host(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+        }
+        return new ShardMap(nodes);
+    }
+
+    /**
+     * Reads a shard map written by writeTo
+     * @return the shard map, or null if the sender is a single directory server that is not split into shards
+     */
+    public static ShardMap readFrom(WireCodec.Frame message) throws IOException {
+        int nodeCount = message.getInt();
+        if (nodeCount == 0) {
+            return null;
+        }
+        List<Host> nodes = new ArrayList<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.add(new Host(message.getString(), message.getInt()));
+        }
+        return new ShardMap(nodes);
+    }
+
+    public WireCodec.FrameWriter writeTo(WireCodec.FrameWriter message) {
+        message.putInt(nodes.size());
+        for (Host node : nodes) {
+            message.putString(node.getIPAddress()).putInt(node.getPortNumber());
+        }
+        return message;
+    }
+
+    /**
+     * @return the directory node that owns the file
+     */
+    public Host getNode(String filename) {
+        int point = Arrays.binarySearch(points, hash(filename));
+        if (point < 0) {
+            point = -point - 1; // the first point after the hash
+        }
+        return nodes.get(owners[point == points.length ? 0 : point]);
+    }
+
+    public List<Host> getNodes() {
+        return nodes;
+    }
+
+    public boolean contains(Host node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * @return whether both maps have the same nodes, whatever their order, and so place every file the same way
+     */
+    public boolean hasSameNodes(ShardMap other) {
+        return other != null && new HashSet<>(nodes).equals(new HashSet<>(other.nodes));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Host node : nodes) {
+            if (s.length() > 0) {
+                s.append(",");
+            }
+            s.append(node.getIPAddress()).append(":").append(node.getPortNumber());
+        }
+        return s.toString();
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, with the final mix of MurmurHash3 so that keys differing only in their
+     * last characters, such as the virtual nodes of one node, spread over the whole ring.
+     * Must give the same value in every JVM, since clients and nodes place files independently.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Runs a whole swarm on this machine to see how it behaves under load: one directory server, seeders that each
+ * serve a copy of a file, and downloaders that arrive over time, download the file and then serve it in turn.
+ * Seeders leave and come back while the downloads run. Every peer has a P2P server of its own on a loopback port
+ * and a directory of its own, all in one process and under a temporary directory that is deleted at the end.
+ */
+public class SwarmLoadTest {
+
+    private static final String FILENAME = "swarm.bin";
+    private static final String LOCALHOST = "127.0.0.1";
+
+    private static final int DEFAULT_SEEDERS = 4;
+    private static final int DEFAULT_DOWNLOADERS = 16;
+    private static final int DEFAULT_FILE_MB = 32;
+    private static final double DEFAULT_ARRIVALS_PER_SECOND = 4;
+    private static final double DEFAULT_CHURN_PER_MINUTE = 30;
+
+    private final Path root;
+    private final int directoryPort;
+    private final long fileSize;
+    private final ChunkScheduler chunkScheduler;
+
+    private final List<Peer> seeders = new ArrayList<>();
+    private final AtomicInteger churnEvents = new AtomicInteger();
+
+    public SwarmLoadTest(Path root, int directoryPort, long fileSize, ChunkScheduler chunkScheduler) {
+        this.root = root;
+        this.directoryPort = directoryPort;
+        this.fileSize = fileSize;
+        this.chunkScheduler = chunkScheduler;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 6) {
+            System.err.println("Usage: java SwarmLoadTest [seeders] [downloaders] [fileMB] [arrivalsPerSecond]"
+                    + " [seederChurnPerMinute] [chunkScheduler]");
+            System.exit(1);
+        }
+        int seederCount = args.length >= 1 ? Integer.parseInt(args[0]) : DEFAULT_SEEDERS;
+        int downloaderCount = args.length >= 2 ? Integer.parseInt(args[1]) : DEFAULT_DOWNLOADERS;
+        int fileMB = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_FILE_MB;
+        double arrivalsPerSecond = args.length >= 4 ? Double.parseDouble(args[3]) : DEFAULT_ARRIVALS_PER_SECOND;
+        double churnPerMinute = args.length >= 5 ? Double.parseDouble(args[4]) : DEFAULT_CHURN_PER_MINUTE;
+        ChunkScheduler chunkScheduler = ChunkScheduler.forName(
+                args.length >= 6 ? args[5] : Constant.DEFAULT_CHUNK_SCHEDULER);
+
+        Path root = Files.createTempDirectory("p2p-swarm");
+        int directoryPort = getFreePort();
+
+        DirectoryServer directoryServer = new DirectoryServer(root.resolve("directory") + "/",
+                PeerSelector.forName(Constant.DEFAULT_PEER_SELECTOR));
+        Thread directoryThread = new Thread(() -> directoryServer.startWelcomeSocket(directoryPort), "directory");
+        directoryThread.setDaemon(true);
+        directoryThread.start();
+        waitUntilListening(directoryPort);
+
+        SwarmLoadTest swarm = new SwarmLoadTest(root, directoryPort, fileMB * 1024L * 1024, chunkScheduler);
+        try {
+            swarm.run(seederCount, downloaderCount, arrivalsPerSecond, churnPerMinute, directoryServer.getMetrics());
+        } finally {
+            deleteRecursively(root);
+        }
+        // The directory server has no way to stop, and the peers' upload workers may still be idling
+        System.exit(0);
+    }
+
+    private void run(int seederCount, int downloaderCount, double arrivalsPerSecond, double churnPerMinute,
+                     Metrics directoryMetrics) throws Exception {
+
+        Path original = root.resolve(FILENAME);
+        writeRandomFile(original, fileSize);
+
+        for (int i = 0; i < seederCount; i++) {
+            Peer seeder = new Peer(root.resolve("seeder-" + i) + "/");
+            new File(seeder.directory).mkdirs();
+            Files.copy(original, Paths.get(seeder.directory + FILENAME));
+            seeder.join();
+            System.out.println(seeder.client.informFile(FILENAME));
+            seeders.add(seeder);
+        }
+
+        // Seeders restart one at a time at random, on a new port, as a peer whose process was restarted would
+        ScheduledExecutorService churn = Executors.newSingleThreadScheduledExecutor();
+        if (churnPerMinute > 0 && seederCount > 0) {
+            long churnIntervalMillis = (long) (60_000 / churnPerMinute);
+            churn.scheduleWithFixedDelay(this::restartRandomSeeder, churnIntervalMillis, churnIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        ExecutorService downloaders = Executors.newFixedThreadPool(Math.max(1, downloaderCount));
+        List<Future<Long>> completions = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < downloaderCount; i++) {
+            long arrivalNanos = startNanos + (long) (i * 1e9 / arrivalsPerSecond);
+            Peer downloader = new Peer(root.resolve("downloader-" + i) + "/");
+            completions.add(downloaders.submit(() -> download(downloader, arrivalNanos)));
+        }
+
+        List<Long> completionNanos = new ArrayList<>();
+        int failures = 0;
+        for (Future<Long> completion : completions) {
+            long nanos = completion.get();
+            if (nanos < 0) {
+                failures++;
+            } else {
+                completionNanos.add(nanos);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        churn.shutdownNow();
+        churn.awaitTermination(1, TimeUnit.MINUTES);
+        downloaders.shutdown();
+
+        report(completionNanos, failures, elapsedNanos, directoryMetrics);
+    }
+
+    /**
+     * Waits for the downloader's arrival time, then starts it and downloads the file
+     * @return the completion time in nanoseconds from arrival, or -1 if the download failed
+     */
+    private long download(Peer downloader, long arrivalNanos) throws InterruptedException {
+        long delayNanos = arrivalNanos - System.nanoTime();
+        if (delayNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(delayNanos);
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            new File(downloader.directory).mkdirs();
+            downloader.join();
+            System.out.println(downloader.client.getDownloadMessage(FILENAME, chunkScheduler));
+        } catch (IOException ioe) {
+            System.out.println("Download of " + downloader.directory + FILENAME + " failed: " + ioe.getMessage());
+            return -1;
+        }
+        // The downloader stays in the swarm and serves the file to the downloaders after it
+        if (new File(downloader.directory + FILENAME).length() != fileSize) {
+            return -1;
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Restarts one seeder, which goes back into the list whether or not the restart worked,
+     * so that a failed restart is retried by a later churn event instead of shrinking the list.
+     * Runs on the churn executor, which a thrown exception would stop for good, so none is let through.
+     */
+    private void restartRandomSeeder() {
+        Peer seeder;
+        synchronized (seeders) {
+            if (seeders.isEmpty()) {
+                return;
+            }
+            seeder = seeders.remove(ThreadLocalRandom.current().nextInt(seeders.size()));
+        }
+        Peer current = seeder;
+        try {
+            try {
+                seeder.leave();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Seeder " + seeder.directory + " did not leave cleanly: " + e.getMessage());
+            }
+            current = new Peer(seeder.directory);
+            current.join();
+            current.client.informFile(FILENAME);
+            churnEvents.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to restart seeder " + seeder.directory + ": " + e.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (seeders) {
+                seeders.add(current);
+            }
+        }
+    }
+
+    private void report(List<Long> completionNanos, int failures, long elapsedNanos, Metrics directoryMetrics) {
+        Collections.sort(completionNanos);
+        long bytesDownloaded = fileSize * completionNanos.size();
+
+        StringBuilder s = new StringBuilder();
+        s.append(Constant.MESSAGE_DELIMITER).append("Swarm load test:").append(Constant.MESSAGE_DELIMITER);
+        s.append(String.format("downloads completed=%d failed=%d seeder restarts=%d",
+                completionNanos.size(), failures, churnEvents.get())).append(Constant.MESSAGE_DELIMITER);
+        s.append(String.format("aggregate throughput=%.1f MB/s over %.1f s",
+                bytesDownloaded / 1048576.0 / (elapsedNanos / 1e9), elapsedNanos / 1e9))
+                .append(Constant.MESSAGE_DELIMITER);
+        if (!completionNanos.isEmpty()) {
+            s.append(String.format("completion time p50=%dms p90=%dms p99=%dms max=%dms",
+                    getPercentileMillis(completionNanos, 0.5), getPercentileMillis(completionNanos, 0.9),
+                    getPercentileMillis(completionNanos, 0.99), getPercentileMillis(completionNanos, 1)))
+                    .append(Constant.MESSAGE_DELIMITER);
+        }
+        s.append("Directory server:").append(Constant.MESSAGE_DELIMITER).append(directoryMetrics.report());
+        System.out.println(s);
+    }
+
+    /**
+     * @param sortedNanos Completion times in increasing order
+     */
+    private static long getPercentileMillis(List<Long> sortedNanos, double fraction) {
+        int rank = (int) Math.ceil(fraction * sortedNanos.size());
+        return sortedNanos.get(Math.max(0, rank - 1)) / 1_000_000;
+    }
+
+    private static void writeRandomFile(Path path, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random();
+        try (OutputStream output = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket freePort = new ServerSocket(0)) {
+            return freePort.getLocalPort();
+        }
+    }
+
+    private static void waitUntilListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket(LOCALHOST, port).close();
+                return;
+            } catch (IOException ioe) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Nothing is listening on port " + port);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * A peer of the swarm: a P2P server serving its directory, and a client connected to the directory server
+     */
+    private class Peer {
+        private final String directory;
+        private final int port;
+        private P2PClient client;
+        private Thread serverThread;
+
+        public Peer(String directory) throws IOException {
+            this.directory = directory;
+            this.port = getFreePort();
+        }
+
+        public void join() throws IOException, InterruptedException {
+            P2PTransientServer server = new P2PTransientServer(directory, Constant.DEFAULT_CHUNK_CACHE_BYTES);
+            serverThread = new Thread(() -> server.start(port, Constant.DEFAULT_MAX_CONCURRENT_UPLOADS),
+                    "p2p-server-" + port);
+            serverThread.setDaemon(true);
+            serverThread.start();
+            waitUntilListening(port);
+
+            client = new P2PClient();
+            client.directory = directory;
+            client.ownServerPort = port;
+            client.connect(LOCALHOST, directoryPort);
+        }
+
+        /**
+         * Exits the directory server and stops the P2P server, as the EXIT command does
+         */
+        public void leave() throws IOException, InterruptedException {
+            if (client == null) { // never joined
+                return;
+            }
+            client.getExitMessage();
+            client.disconnect();
+            serverThread.join(5000);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary framing shared by the P2P client, the directory server and the P2P transient server.
+ *
+ * Every message is a frame made of a version byte, a type byte, the payload length as an int, and the payload.
+ * Payload fields are written in order with no tags: ints and longs in big-endian, strings as an unsigned short
+ * byte count followed by UTF-8 bytes. A chunk frame carries the raw chunk bytes as its whole payload.
+ */
+public class WireCodec {
+
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 6;
+
+    // Large enough for the biggest chunk plus headroom for the longest directory reply page
+    public static final int MAX_PAYLOAD_SIZE = Constant.MAX_CHUNK_SIZE + 1024 * 1024;
+
+    /**
+     * @return the header of a frame whose payload the caller sends separately, such as a chunk sent from a file
+     */
+    public static ByteBuffer encodeHeader(byte type, int payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(VERSION).put(type).putInt(payloadLength).flip();
+        return header;
+    }
+
+    /**
+     * Reads one whole frame from a blocking stream
+     */
+    public static Frame readFrame(DataInputStream input) throws IOException {
+        byte version = input.readByte();
+        byte type = input.readByte();
+        int payloadLength = input.readInt();
+        checkHeader(version, payloadLength);
+
+        byte[] payload = new byte[payloadLength];
+        input.readFully(payload);
+        return new Frame(type, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Takes one whole frame off a buffer being filled from a non-blocking channel.
+     * The returned frame's payload shares the buffer's content, so it must be read before the buffer is reused.
+     * @return the frame, or null if the buffer does not hold a whole frame yet, in which case nothing is consumed
+     */
+    public static Frame decodeFrame(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+
+        int start = buffer.position();
+        byte version = buffer.get(start);
+        byte type = buffer.get(start + 1);
+        int payloadLength = buffer.getInt(start + 2);
+        checkHeader(version, payloadLength);
+
+        if (buffer.remaining() < HEADER_SIZE + payloadLength) {
+            return null;
+        }
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + payloadLength);
+        buffer.position(start + HEADER_SIZE + payloadLength);
+        return new Frame(type, payload.slice());
+    }
+
+    private static void checkHeader(byte version, int payloadLength) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid frame length " + payloadLength);
+        }
+    }
+
+    /**
+     * A received frame. Fields are read from the payload in the order they were written.
+     */
+    public static class Frame {
+        private final byte type;
+        private final ByteBuffer payload;
+
+        private Frame(byte type, ByteBuffer payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public int getInt() throws IOException {
+            try {
+                return payload.getInt();
+            } catch (BufferUnderflowException bue) {
+                throw new IOException("Truncated frame of type " + type);
+            }
+        }
+
+        public long getLong() throws IOException {
+            try {
+                return payload.getLong();
+            } catch (BufferUnderflowException bue) {
+                throw new IOException("Truncated frame of type " + type);
+            }
+        }
+
+        public String getString() throws IOException {
+            try {
+                int length = payload.getShort() & 0xFFFF;
+                if (length > payload.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                String value;
+                if (payload.hasArray()) {
+                    value = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+                            StandardCharsets.UTF_8);
+                    payload.position(payload.position() + length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    payload.get(bytes);
+                    value = new String(bytes, StandardCharsets.UTF_8);
+                }
+                return value;
+            } catch (BufferUnderflowException bue) {
+                throw new IOException("Truncated frame of type " + type);
+            }
+        }
+
+        public byte[] getBytes(int length) throws IOException {
+            try {
+                byte[] bytes = new byte[length];
+                payload.get(bytes);
+                return bytes;
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                throw new IOException("Truncated frame of type " + type);
+            }
+        }
+
+        /**
+         * @return whether there are fields left to read, such as optional ones newer senders append
+         */
+        public boolean hasRemaining() {
+            return payload.hasRemaining();
+        }
+
+        /**
+         * @return the unread rest of the payload, such as the bytes of a chunk
+         */
+        public byte[] getRemainingBytes() {
+            if (payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0
+                    && payload.remaining() == payload.array().length) {
+                return payload.array(); // the whole frame was read into this array, so no copy is needed
+            }
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Builds one frame in a growable buffer. The payload length is filled in by finish().
+     */
+    public static class FrameWriter {
+        private ByteBuffer buffer;
+
+        public FrameWriter(byte type) {
+            this(type, 64);
+        }
+
+        public FrameWriter(byte type, int expectedPayloadSize) {
+            buffer = ByteBuffer.allocate(HEADER_SIZE + expectedPayloadSize);
+            buffer.put(VERSION).put(type).putInt(0);
+        }
+
+        public FrameWriter putInt(int value) {
+            ensureCapacity(Integer.BYTES);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public FrameWriter putLong(long value) {
+            ensureCapacity(Long.BYTES);
+            buffer.putLong(value);
+            return this;
+        }
+
+        public FrameWriter putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("String field is too long: " + bytes.length + " bytes");
+            }
+            ensureCapacity(Short.BYTES + bytes.length);
+            buffer.putShort((short) bytes.length).put(bytes);
+            return this;
+        }
+
+        public FrameWriter putBytes(byte[] bytes) {
+            return putBytes(bytes, 0, bytes.length);
+        }
+
+        public FrameWriter putBytes(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            buffer.put(bytes, offset, length);
+            return this;
+        }
+
+        /**
+         * @return where the writer is, to fill in an int written earlier with putIntAt or to roll back with reset
+         */
+        public int position() {
+            return buffer.position();
+        }
+
+        public void putIntAt(int position, int value) {
+            buffer.putInt(position, value);
+        }
+
+        public void reset(int position) {
+            buffer.position(position);
+        }
+
+        /**
+         * @return the frame, ready to be written
+         */
+        public ByteBuffer finish() {
+            buffer.putInt(2, buffer.position() - HEADER_SIZE);
+            buffer.flip();
+            return buffer;
+        }
+
+        public void writeTo(OutputStream output) throws IOException {
+            ByteBuffer frame = finish();
+            output.write(frame.array(), frame.arrayOffset(), frame.limit());
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+}